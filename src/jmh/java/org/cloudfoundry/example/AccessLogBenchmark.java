@@ -0,0 +1,64 @@
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+public class AccessLogBenchmark {
+
+    @Param({"false", "true"})
+    public boolean headers;
+
+    private final StringBuilder buffer = new StringBuilder(512);
+
+    private AccessLog.Entry entry;
+
+    @Setup
+    public void setup() {
+        HttpHeaders requestHeaders = ForwardedHeadersBenchmark.getHeaders(16);
+        AccessLog accessLog = new AccessLog(new SimpleMeterRegistry(), 1.0, this.headers);
+
+        this.entry = accessLog.start(HttpMethod.GET, "http://app.example.com/path?query=value", "203.0.113.1, 10.0.0.1", requestHeaders);
+        this.entry.forwarded();
+        this.entry.upstreamResponded();
+        this.entry.response(HttpStatus.OK, requestHeaders);
+        this.entry.body(new DefaultDataBufferFactory().wrap("test-body".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Benchmark
+    public int format() {
+        this.buffer.setLength(0);
+        AccessLog.format(this.entry, this.buffer);
+        return this.buffer.length();
+    }
+
+    @Benchmark
+    public String record() {
+        this.buffer.setLength(0);
+        AccessLog.format(this.entry, this.buffer);
+        return this.buffer.toString();
+    }
+
+}
@@ -0,0 +1,75 @@
+package org.cloudfoundry.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.cloudfoundry.example.Controller.FORWARDED_FOR;
+import static org.cloudfoundry.example.Controller.FORWARDED_URL;
+import static org.cloudfoundry.example.Controller.PROXY_METADATA;
+import static org.cloudfoundry.example.Controller.PROXY_SIGNATURE;
+import static org.springframework.http.HttpHeaders.HOST;
+
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+public class ForwardedHeadersBenchmark {
+
+    @Param({"8", "32", "128"})
+    public int headerCount;
+
+    private final ForwardedHeaders forwardedHeaders = new ForwardedHeaders(true);
+
+    private HttpHeaders headers;
+
+    private MockServerHttpRequest request;
+
+    @Setup
+    public void setup() {
+        this.headers = getHeaders(this.headerCount);
+        this.request = MockServerHttpRequest.get("http://route-service.example.com/").headers(this.headers).build();
+    }
+
+    @Benchmark
+    public HttpHeaders requestHeaders() {
+        HttpHeaders target = new HttpHeaders();
+        this.forwardedHeaders.copyRequestHeaders(this.request, target);
+        return target;
+    }
+
+    @Benchmark
+    public HttpHeaders responseHeaders() {
+        return ForwardedHeaders.getResponseHeaders(this.headers);
+    }
+
+    static HttpHeaders getHeaders(int headerCount) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HOST, "route-service.example.com");
+        headers.set(FORWARDED_URL, "http://app.example.com/path?query=value");
+        headers.set(FORWARDED_FOR, "203.0.113.1, 10.0.0.1");
+        headers.set(PROXY_METADATA, "test-proxy-metadata");
+        headers.set(PROXY_SIGNATURE, "test-proxy-signature");
+
+        for (int i = headers.size(); i < headerCount; i++) {
+            headers.set("X-Benchmark-" + i, "value-" + i);
+        }
+
+        return HttpHeaders.readOnlyHttpHeaders(headers);
+    }
+
+}
@@ -0,0 +1,85 @@
+package org.cloudfoundry.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+public class IpAllowlistBenchmark {
+
+    @Param({"1", "100", "10000"})
+    public int allowlistSize;
+
+    @Param({"1", "3", "8"})
+    public int hops;
+
+    private IpAllowlist allowlist;
+
+    private String allowedForwardedFor;
+
+    private String deniedForwardedFor;
+
+    private String allowedIpv6ForwardedFor;
+
+    @Setup
+    public void setup() {
+        StringBuilder specification = new StringBuilder();
+        for (int i = 0; i < this.allowlistSize; i++) {
+            switch (i % 3) {
+                case 0:
+                    specification.append(String.format("10.%d.%d.%d, ", (i >> 16) & 0xFF, (i >> 8) & 0xFF, i & 0xFF));
+                    break;
+                case 1:
+                    specification.append(String.format("172.%d.%d.0/24, ", 16 + ((i >> 8) & 0x0F), i & 0xFF));
+                    break;
+                default:
+                    specification.append(String.format("2001:db8:%x::/48, ", i));
+                    break;
+            }
+        }
+        this.allowlist = IpAllowlist.parse(specification.toString());
+
+        this.allowedForwardedFor = getForwardedFor("10.0.0.0");
+        this.deniedForwardedFor = getForwardedFor("192.0.2.1");
+        this.allowedIpv6ForwardedFor = getForwardedFor(this.allowlistSize > 2 ? "2001:db8:2::1" : "10.0.0.0");
+    }
+
+    @Benchmark
+    public boolean allowed() {
+        return this.allowlist.matchesAny(this.allowedForwardedFor);
+    }
+
+    @Benchmark
+    public boolean allowedIpv6() {
+        return this.allowlist.matchesAny(this.allowedIpv6ForwardedFor);
+    }
+
+    @Benchmark
+    public boolean denied() {
+        return this.allowlist.matchesAny(this.deniedForwardedFor);
+    }
+
+    private String getForwardedFor(String client) {
+        StringBuilder forwardedFor = new StringBuilder(client);
+        for (int i = 1; i < this.hops; i++) {
+            forwardedFor.append(String.format(", 198.51.100.%d", i));
+        }
+        return forwardedFor.toString();
+    }
+
+}
@@ -0,0 +1,121 @@
+package org.cloudfoundry.example;
+
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.ipc.netty.NettyContext;
+import reactor.ipc.netty.http.server.HttpServer;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.cloudfoundry.example.Controller.FORWARDED_FOR;
+import static org.cloudfoundry.example.Controller.FORWARDED_URL;
+import static org.cloudfoundry.example.Controller.PROXY_METADATA;
+import static org.cloudfoundry.example.Controller.PROXY_SIGNATURE;
+import static org.springframework.http.HttpHeaders.CONTENT_LENGTH;
+
+/**
+ * Requests proxied end-to-end through the route service to a local Netty stub backend.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 2)
+public class ProxyBenchmark {
+
+    @Param({"0", "1024", "65536"})
+    public int bodySize;
+
+    @Param({"8", "32"})
+    public int headerCount;
+
+    private ConfigurableApplicationContext application;
+
+    private NettyContext backend;
+
+    private WebClient client;
+
+    private byte[] body;
+
+    private HttpHeaders headers;
+
+    private String routeServiceUrl;
+
+    @Setup
+    public void setup() {
+        this.body = new byte[this.bodySize];
+        this.backend = HttpServer.create(0)
+            .newHandler((request, response) -> request.receive()
+                .then(response
+                    .header(CONTENT_LENGTH, Integer.toString(this.body.length))
+                    .send(Mono.just(Unpooled.wrappedBuffer(this.body)))
+                    .then()))
+            .block();
+
+        this.application = new SpringApplicationBuilder(RouteServiceApplication.class)
+            .properties("server.port=0", "VALID_IPS=127.0.0.1", "ACCESS_LOG_SAMPLE_RATE=0")
+            .run();
+        this.routeServiceUrl = String.format("http://localhost:%s/", this.application.getEnvironment().getProperty("local.server.port"));
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(FORWARDED_URL, String.format("http://localhost:%d/original", this.backend.address().getPort()));
+        headers.set(FORWARDED_FOR, "127.0.0.1");
+        headers.set(PROXY_METADATA, "test-proxy-metadata");
+        headers.set(PROXY_SIGNATURE, "test-proxy-signature");
+        for (int i = headers.size(); i < this.headerCount; i++) {
+            headers.set("X-Benchmark-" + i, "value-" + i);
+        }
+        this.headers = headers;
+
+        this.client = WebClient.create();
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.application.close();
+        this.backend.dispose();
+    }
+
+    @Benchmark
+    public int get() {
+        return this.client
+            .get().uri(this.routeServiceUrl)
+            .headers(headers -> headers.putAll(this.headers))
+            .exchange()
+            .flatMap(response -> response.bodyToMono(byte[].class))
+            .map(bytes -> bytes.length)
+            .defaultIfEmpty(0)
+            .block();
+    }
+
+    @Benchmark
+    public int post() {
+        return this.client
+            .post().uri(this.routeServiceUrl)
+            .headers(headers -> headers.putAll(this.headers))
+            .syncBody(this.body)
+            .exchange()
+            .flatMap(response -> response.bodyToMono(byte[].class))
+            .map(bytes -> bytes.length)
+            .defaultIfEmpty(0)
+            .block();
+    }
+
+}
@@ -0,0 +1,439 @@
+package org.cloudfoundry.example;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.ipc.netty.resources.PoolResources;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.cloudfoundry.example.Controller.FORWARDED_FOR;
+import static org.cloudfoundry.example.Controller.FORWARDED_URL;
+import static org.cloudfoundry.example.Controller.PROXY_METADATA;
+import static org.cloudfoundry.example.Controller.PROXY_SIGNATURE;
+
+/**
+ * Drives open-model load through the route service to local {@link StubBackend}s and writes the results as JSON.
+ * <p>
+ * Requests are started on a fixed schedule at the target rate whether or not earlier requests have completed.  Each
+ * request's latency is measured from the time it was scheduled to start as well as from the time it was actually sent,
+ * so that time spent queued behind a stalled generator or service is not omitted from the corrected latencies.  Options
+ * are given as {@code --name=value} arguments; see {@link Options}.
+ */
+public final class LoadTest {
+
+    private final Options options;
+
+    private final Recorder corrected = new Recorder(3);
+
+    private final Recorder uncorrected = new Recorder(3);
+
+    private final Map<String, LongAdder> statuses = new ConcurrentHashMap<>();
+
+    private final LongAdder errors = new LongAdder();
+
+    private final LongAdder overloaded = new LongAdder();
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    private volatile long measureFrom = Long.MAX_VALUE;
+
+    private LoadTest(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = Options.parse(args);
+
+        List<StubBackend> backends = new ArrayList<>();
+        for (int i = 0; i < options.backends; i++) {
+            backends.add(new StubBackend(options.latency, options.jitter, options.responseSize, options.chunks, options.chunkDelay,
+                options.errorRate).start());
+        }
+
+        ConfigurableApplicationContext application = new SpringApplicationBuilder(RouteServiceApplication.class)
+            .properties("server.port=0", "VALID_IPS=127.0.0.1", "ACCESS_LOG_SAMPLE_RATE=0")
+            .properties(options.properties.toArray(new String[0]))
+            .run();
+
+        try {
+            String routeServiceUrl = String.format("http://localhost:%s/", application.getEnvironment().getProperty("local.server.port"));
+            Map<String, Object> result = new LoadTest(options).run(routeServiceUrl, backends);
+
+            ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+            File output = new File(options.output);
+            if (output.getParentFile() != null) {
+                output.getParentFile().mkdirs();
+            }
+            objectMapper.writeValue(output, result);
+            System.out.println(objectMapper.writeValueAsString(result));
+        } finally {
+            application.close();
+            backends.forEach(StubBackend::stop);
+        }
+    }
+
+    private Map<String, Object> run(String routeServiceUrl, List<StubBackend> backends) {
+        WebClient client = WebClient.builder()
+            .clientConnector(new ReactorClientHttpConnector(clientOptions -> clientOptions
+                .poolResources(PoolResources.fixed("load-test", this.options.connections))))
+            .build();
+
+        String[] forwardedUrls = backends.stream()
+            .map(backend -> String.format("http://localhost:%d/load-test", backend.getPort()))
+            .toArray(String[]::new);
+        byte[] requestBody = new byte[this.options.requestSize];
+
+        long period = TimeUnit.SECONDS.toNanos(1) / this.options.rps;
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(this.options.warmup);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(this.options.duration);
+        long nextInterval = measureFrom + TimeUnit.SECONDS.toNanos(this.options.interval);
+
+        Histogram correctedTotal = new Histogram(3);
+        Histogram uncorrectedTotal = new Histogram(3);
+        List<Map<String, Object>> intervals = new ArrayList<>();
+        Memory memory = new Memory();
+        boolean measuring = false;
+        this.measureFrom = measureFrom;
+
+        for (long i = 0; ; i++) {
+            long scheduled = start + i * period;
+            if (scheduled >= end) {
+                break;
+            }
+
+            if (!measuring && scheduled >= measureFrom) {
+                measuring = true;
+                memory.reset();
+            }
+
+            if (scheduled >= nextInterval) {
+                intervals.add(interval(correctedTotal, uncorrectedTotal, memory, nextInterval - measureFrom));
+                nextInterval += TimeUnit.SECONDS.toNanos(this.options.interval);
+            }
+
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            send(client, forwardedUrls[(int) (i % forwardedUrls.length)], routeServiceUrl, requestBody, scheduled);
+        }
+
+        long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (this.outstanding.get() > 0 && System.nanoTime() < drainUntil) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        intervals.add(interval(correctedTotal, uncorrectedTotal, memory, end - measureFrom));
+
+        Map<String, Long> statuses = new TreeMap<>();
+        this.statuses.forEach((status, count) -> statuses.put(status, count.sum()));
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("options", this.options.toMap());
+        result.put("requests", correctedTotal.getTotalCount());
+        result.put("throughput", correctedTotal.getTotalCount() / (double) this.options.duration);
+        result.put("statuses", statuses);
+        result.put("errors", this.errors.sum());
+        result.put("overloaded", this.overloaded.sum());
+        result.put("unfinished", this.outstanding.get());
+        result.put("latency", latency(correctedTotal));
+        result.put("serviceTime", latency(uncorrectedTotal));
+        result.put("memory", memory.toMap());
+        result.put("intervals", intervals);
+        return result;
+    }
+
+    private void send(WebClient client, String forwardedUrl, String routeServiceUrl, byte[] requestBody, long scheduled) {
+        if (this.outstanding.incrementAndGet() > this.options.maxOutstanding) {
+            this.outstanding.decrementAndGet();
+            if (scheduled >= this.measureFrom) {
+                this.overloaded.increment();
+            }
+            return;
+        }
+
+        long sent = System.nanoTime();
+
+        client
+            .method(this.options.method)
+            .uri(routeServiceUrl)
+            .headers(headers -> {
+                headers.set(FORWARDED_URL, forwardedUrl);
+                headers.set(FORWARDED_FOR, "127.0.0.1");
+                headers.set(PROXY_METADATA, "load-test-metadata");
+                headers.set(PROXY_SIGNATURE, "load-test-signature");
+            })
+            .body(requestBody.length > 0 ? BodyInserters.fromObject(requestBody) : BodyInserters.empty())
+            .exchange()
+            .flatMap(response -> response.bodyToFlux(DataBuffer.class)
+                .doOnNext(DataBufferUtils::release)
+                .then(Mono.just(response.statusCode().value())))
+            .doFinally(signal -> this.outstanding.decrementAndGet())
+            .subscribe(status -> {
+                if (scheduled >= this.measureFrom) {
+                    long now = System.nanoTime();
+                    this.corrected.recordValue(now - scheduled);
+                    this.uncorrected.recordValue(now - sent);
+                    this.statuses.computeIfAbsent(Integer.toString(status), key -> new LongAdder()).increment();
+                }
+            }, error -> {
+                if (scheduled >= this.measureFrom) {
+                    this.errors.increment();
+                }
+            });
+    }
+
+    private Map<String, Object> interval(Histogram correctedTotal, Histogram uncorrectedTotal, Memory memory, long elapsed) {
+        Histogram corrected = this.corrected.getIntervalHistogram();
+        Histogram uncorrected = this.uncorrected.getIntervalHistogram();
+        correctedTotal.add(corrected);
+        uncorrectedTotal.add(uncorrected);
+
+        long heapUsed = memory.sample();
+
+        Map<String, Object> interval = new LinkedHashMap<>();
+        interval.put("elapsedSeconds", TimeUnit.NANOSECONDS.toSeconds(elapsed));
+        interval.put("requests", corrected.getTotalCount());
+        interval.put("p50Ms", toMillis(corrected.getValueAtPercentile(50)));
+        interval.put("p99Ms", toMillis(corrected.getValueAtPercentile(99)));
+        interval.put("maxMs", toMillis(corrected.getMaxValue()));
+        interval.put("outstanding", this.outstanding.get());
+        interval.put("heapUsedBytes", heapUsed);
+        return interval;
+    }
+
+    private static Map<String, Object> latency(Histogram histogram) {
+        Map<String, Object> latency = new LinkedHashMap<>();
+        latency.put("meanMs", histogram.getTotalCount() > 0 ? histogram.getMean() / 1e6 : 0);
+        for (double percentile : new double[]{50, 90, 99, 99.9, 99.99}) {
+            latency.put(String.format("p%sMs", percentile % 1 == 0 ? Long.toString((long) percentile) : Double.toString(percentile)),
+                toMillis(histogram.getValueAtPercentile(percentile)));
+        }
+        latency.put("maxMs", toMillis(histogram.getMaxValue()));
+        return latency;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * Heap and garbage collection statistics for the JVM running both the route service and the generator.
+     */
+    private static final class Memory {
+
+        private long heapUsedMax;
+
+        private long liveHeapMax;
+
+        private long collections;
+
+        private long collectionMillis;
+
+        private void reset() {
+            this.heapUsedMax = 0;
+            this.liveHeapMax = 0;
+            this.collections = -collections();
+            this.collectionMillis = -collectionMillis();
+        }
+
+        private long sample() {
+            long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            this.heapUsedMax = Math.max(this.heapUsedMax, heapUsed);
+
+            long liveHeap = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                MemoryUsage usage = pool.getCollectionUsage();
+                if (pool.getType() == MemoryType.HEAP && usage != null) {
+                    liveHeap += usage.getUsed();
+                }
+            }
+            this.liveHeapMax = Math.max(this.liveHeapMax, liveHeap);
+
+            return heapUsed;
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> memory = new LinkedHashMap<>();
+            memory.put("heapUsedMaxBytes", this.heapUsedMax);
+            memory.put("heapAfterGcMaxBytes", this.liveHeapMax);
+            memory.put("collections", this.collections + collections());
+            memory.put("collectionMillis", this.collectionMillis + collectionMillis());
+            return memory;
+        }
+
+        private static long collections() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+        }
+
+        private static long collectionMillis() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+        }
+
+    }
+
+    /**
+     * Load test options.
+     */
+    private static final class Options {
+
+        private int rps = 1000;
+
+        private long duration = 60;
+
+        private long warmup = 10;
+
+        private long interval = 10;
+
+        private HttpMethod method = HttpMethod.GET;
+
+        private int requestSize = 0;
+
+        private int connections = 500;
+
+        private int maxOutstanding = 10000;
+
+        private int backends = 1;
+
+        private long latency = 5;
+
+        private long jitter = 0;
+
+        private int responseSize = 1024;
+
+        private int chunks = 1;
+
+        private long chunkDelay = 0;
+
+        private double errorRate = 0;
+
+        private String output = "target/loadtest-result.json";
+
+        private final List<String> properties = new ArrayList<>();
+
+        private static Options parse(String[] args) {
+            Options options = new Options();
+
+            for (String arg : args) {
+                int separator = arg.indexOf('=');
+                if (!arg.startsWith("--") || separator < 0) {
+                    throw new IllegalArgumentException(String.format("Invalid option '%s'", arg));
+                }
+
+                String value = arg.substring(separator + 1);
+                switch (arg.substring(2, separator)) {
+                    case "rps":
+                        options.rps = Integer.parseInt(value);
+                        break;
+                    case "duration":
+                        options.duration = Long.parseLong(value);
+                        break;
+                    case "warmup":
+                        options.warmup = Long.parseLong(value);
+                        break;
+                    case "interval":
+                        options.interval = Long.parseLong(value);
+                        break;
+                    case "method":
+                        options.method = HttpMethod.valueOf(value.toUpperCase(Locale.ROOT));
+                        break;
+                    case "requestSize":
+                        options.requestSize = Integer.parseInt(value);
+                        break;
+                    case "connections":
+                        options.connections = Integer.parseInt(value);
+                        break;
+                    case "maxOutstanding":
+                        options.maxOutstanding = Integer.parseInt(value);
+                        break;
+                    case "backends":
+                        options.backends = Integer.parseInt(value);
+                        break;
+                    case "latency":
+                        options.latency = Long.parseLong(value);
+                        break;
+                    case "jitter":
+                        options.jitter = Long.parseLong(value);
+                        break;
+                    case "responseSize":
+                        options.responseSize = Integer.parseInt(value);
+                        break;
+                    case "chunks":
+                        options.chunks = Integer.parseInt(value);
+                        break;
+                    case "chunkDelay":
+                        options.chunkDelay = Long.parseLong(value);
+                        break;
+                    case "errorRate":
+                        options.errorRate = Double.parseDouble(value);
+                        break;
+                    case "output":
+                        options.output = value;
+                        break;
+                    case "env":
+                        options.properties.add(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException(String.format("Unknown option '%s'", arg));
+                }
+            }
+
+            if (options.rps <= 0 || options.duration <= 0 || options.interval <= 0 || options.backends <= 0) {
+                throw new IllegalArgumentException("rps, duration, interval and backends must be positive");
+            }
+
+            return options;
+        }
+
+        private Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("rps", this.rps);
+            map.put("durationSeconds", this.duration);
+            map.put("warmupSeconds", this.warmup);
+            map.put("method", this.method.name());
+            map.put("requestSize", this.requestSize);
+            map.put("connections", this.connections);
+            map.put("maxOutstanding", this.maxOutstanding);
+            map.put("backends", this.backends);
+            map.put("latencyMs", this.latency);
+            map.put("jitterMs", this.jitter);
+            map.put("responseSize", this.responseSize);
+            map.put("chunks", this.chunks);
+            map.put("chunkDelayMs", this.chunkDelay);
+            map.put("errorRate", this.errorRate);
+            map.put("env", this.properties);
+            return map;
+        }
+
+    }
+
+}
@@ -0,0 +1,95 @@
+package org.cloudfoundry.example;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.ipc.netty.NettyContext;
+import reactor.ipc.netty.http.server.HttpServer;
+import reactor.ipc.netty.http.server.HttpServerRequest;
+import reactor.ipc.netty.http.server.HttpServerResponse;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.springframework.http.HttpHeaders.CONTENT_LENGTH;
+
+/**
+ * A local Netty backend that answers every request after a configurable delay, optionally streaming its body in
+ * chunks and failing a fraction of requests.
+ */
+final class StubBackend {
+
+    private final long latency;
+
+    private final long jitter;
+
+    private final byte[] chunk;
+
+    private final int chunks;
+
+    private final Duration chunkDelay;
+
+    private final double errorRate;
+
+    private NettyContext context;
+
+    /**
+     * @param latency      milliseconds before responding
+     * @param jitter       maximum random milliseconds added to {@code latency}
+     * @param responseSize response body bytes
+     * @param chunks       chunks the response body is sent in
+     * @param chunkDelay   milliseconds between chunks
+     * @param errorRate    fraction of requests answered with a HTTP 500 status
+     */
+    StubBackend(long latency, long jitter, int responseSize, int chunks, long chunkDelay, double errorRate) {
+        this.latency = latency;
+        this.jitter = jitter;
+        this.chunks = Math.max(1, chunks);
+        this.chunk = new byte[responseSize / this.chunks];
+        this.chunkDelay = Duration.ofMillis(chunkDelay);
+        this.errorRate = errorRate;
+    }
+
+    StubBackend start() {
+        this.context = HttpServer.create(0).newHandler(this::handle).block();
+        return this;
+    }
+
+    void stop() {
+        this.context.dispose();
+    }
+
+    int getPort() {
+        return this.context.address().getPort();
+    }
+
+    private Mono<Void> handle(HttpServerRequest request, HttpServerResponse response) {
+        long delay = this.latency + (this.jitter > 0 ? ThreadLocalRandom.current().nextLong(this.jitter + 1) : 0);
+
+        return request.receive()
+            .then(delay > 0 ? Mono.delay(Duration.ofMillis(delay)).then() : Mono.empty())
+            .then(Mono.defer(() -> respond(response)));
+    }
+
+    private Mono<Void> respond(HttpServerResponse response) {
+        if (this.errorRate > 0 && ThreadLocalRandom.current().nextDouble() < this.errorRate) {
+            return response.status(HttpResponseStatus.INTERNAL_SERVER_ERROR)
+                .header(CONTENT_LENGTH, "0")
+                .send(Mono.empty())
+                .then();
+        }
+
+        Flux<ByteBuf> body = Flux.range(0, this.chunks).map(i -> Unpooled.wrappedBuffer(this.chunk));
+        if (this.chunks > 1 && !this.chunkDelay.isZero()) {
+            body = body.delayElements(this.chunkDelay);
+        }
+
+        return response
+            .header(CONTENT_LENGTH, Integer.toString(this.chunk.length * this.chunks))
+            .send(body)
+            .then();
+    }
+
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes one structured record per proxied exchange.  Records are assembled into a reusable per-thread buffer and
+ * written through the {@link AccessLogAppender}, which drops rather than blocks when the console cannot keep up.
+ */
+@Component
+final class AccessLog {
+
+    private static final int MAX_RETAINED_BUFFER = 16 * 1024;
+
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(512));
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final Entry none = new Entry(null, null, null, null, null);
+
+    private final double sampleRate;
+
+    private final boolean headers;
+
+    AccessLog(MeterRegistry meterRegistry,
+              @Value("${ACCESS_LOG_SAMPLE_RATE:1.0}") double sampleRate,
+              @Value("${ACCESS_LOG_HEADERS:false}") boolean headers) {
+
+        this.sampleRate = sampleRate;
+        this.headers = headers;
+
+        FunctionCounter.builder("access.log.dropped", AccessLogAppender.class, type -> AccessLogAppender.getDropped())
+            .description("Access log records dropped because the log queue was full")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Starts a record for an exchange.  If the exchange is not sampled, the returned entry ignores all updates.
+     */
+    Entry start(HttpMethod method, String target, String forwardedFor, HttpHeaders requestHeaders) {
+        if (!this.logger.isInfoEnabled() || !isSampled()) {
+            return this.none;
+        }
+
+        return new Entry(this, method, target, forwardedFor, this.headers ? requestHeaders : null);
+    }
+
+    /**
+     * Returns the entry that ignores all updates, for exchanges that must not be logged.
+     */
+    Entry none() {
+        return this.none;
+    }
+
+    private boolean isSampled() {
+        return this.sampleRate >= 1.0 || (this.sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < this.sampleRate);
+    }
+
+    private void write(Entry entry) {
+        StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+
+        format(entry, buffer);
+        this.logger.info(buffer.toString());
+
+        if (buffer.capacity() > MAX_RETAINED_BUFFER) {
+            BUFFER.remove();
+        }
+    }
+
+    /**
+     * Appends the record for an entry to a buffer.
+     */
+    static void format(Entry entry, StringBuilder buffer) {
+        buffer.append("method=").append(entry.method)
+            .append(" target=").append(entry.target)
+            .append(" status=").append(entry.status)
+            .append(" bytes=").append(entry.bytes)
+            .append(" duration_ms=");
+        appendMillis(buffer, System.nanoTime() - entry.start);
+
+        buffer.append(" upstream_ms=");
+        if (entry.upstreamLatency >= 0) {
+            appendMillis(buffer, entry.upstreamLatency);
+        } else {
+            buffer.append('-');
+        }
+
+        buffer.append(" client=");
+        appendClient(buffer, entry.forwardedFor);
+
+        if (entry.error != null) {
+            buffer.append(" error=").append(entry.error.getClass().getSimpleName());
+        }
+
+        if (entry.requestHeaders != null) {
+            buffer.append(" request_headers=").append(entry.requestHeaders);
+        }
+        if (entry.responseHeaders != null) {
+            buffer.append(" response_headers=").append(entry.responseHeaders);
+        }
+    }
+
+    private static void appendMillis(StringBuilder buffer, long nanos) {
+        long micros = nanos / 1_000;
+        buffer.append(micros / 1_000).append('.');
+
+        long fraction = micros % 1_000;
+        if (fraction < 100) {
+            buffer.append('0');
+        }
+        if (fraction < 10) {
+            buffer.append('0');
+        }
+        buffer.append(fraction);
+    }
+
+    private static void appendClient(StringBuilder buffer, String forwardedFor) {
+        int end = forwardedFor.indexOf(',');
+        if (end < 0) {
+            end = forwardedFor.length();
+        }
+
+        int start = 0;
+        while (start < end && Character.isWhitespace(forwardedFor.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(forwardedFor.charAt(end - 1))) {
+            end--;
+        }
+
+        if (start == end) {
+            buffer.append('-');
+        } else {
+            buffer.append(forwardedFor, start, end);
+        }
+    }
+
+    /**
+     * The state of a single exchange's record.  Updates arrive serially from the exchange's signals.  The entry of
+     * unsampled exchanges is shared and has no record, so its updates return without writing any state.
+     */
+    static final class Entry {
+
+        private final AccessLog accessLog;
+
+        private final HttpMethod method;
+
+        private final String target;
+
+        private final String forwardedFor;
+
+        private final HttpHeaders requestHeaders;
+
+        private final long start = System.nanoTime();
+
+        private long upstreamStart;
+
+        private long upstreamLatency = -1;
+
+        private int status;
+
+        private long bytes;
+
+        private HttpHeaders responseHeaders;
+
+        private Throwable error;
+
+        private boolean completed;
+
+        private Entry(AccessLog accessLog, HttpMethod method, String target, String forwardedFor, HttpHeaders requestHeaders) {
+            this.accessLog = accessLog;
+            this.method = method;
+            this.target = target;
+            this.forwardedFor = forwardedFor;
+            this.requestHeaders = requestHeaders;
+        }
+
+        /**
+         * Records that the request is being sent upstream.
+         */
+        void forwarded() {
+            if (this.accessLog == null) {
+                return;
+            }
+
+            this.upstreamStart = System.nanoTime();
+        }
+
+        /**
+         * Records the arrival of the upstream response headers.
+         */
+        void upstreamResponded() {
+            if (this.accessLog != null && this.upstreamStart != 0) {
+                this.upstreamLatency = System.nanoTime() - this.upstreamStart;
+            }
+        }
+
+        /**
+         * Records the status and headers of the response sent to the client.
+         */
+        void response(HttpStatus status, HttpHeaders headers) {
+            if (this.accessLog == null) {
+                return;
+            }
+
+            this.status = status.value();
+            if (this.accessLog.headers) {
+                this.responseHeaders = headers;
+            }
+        }
+
+        /**
+         * Records a chunk of the response body.
+         */
+        void body(DataBuffer buffer) {
+            if (this.accessLog == null) {
+                return;
+            }
+
+            this.bytes += buffer.readableByteCount();
+        }
+
+        /**
+         * Records the failure of the exchange and writes the record.
+         */
+        void failed(Throwable error) {
+            if (this.accessLog == null) {
+                return;
+            }
+
+            this.error = error;
+            this.status = HttpStatus.INTERNAL_SERVER_ERROR.value();
+            complete();
+        }
+
+        /**
+         * Writes the record.  Only the first call has any effect.
+         */
+        void complete() {
+            if (this.accessLog != null && !this.completed) {
+                this.completed = true;
+                this.accessLog.write(this);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An asynchronous appender that never blocks the logging thread.  Events are offered to a bounded queue drained by a
+ * single worker thread into the attached appenders; an event the queue does not accept is dropped and counted.
+ */
+public final class AccessLogAppender extends UnsynchronizedAppenderBase<ILoggingEvent> implements AppenderAttachable<ILoggingEvent> {
+
+    private static final LongAdder DROPPED = new LongAdder();
+
+    private static final long MAX_FLUSH_TIME = 1_000;
+
+    private final AppenderAttachableImpl<ILoggingEvent> appenders = new AppenderAttachableImpl<>();
+
+    private int queueSize = 8192;
+
+    private BlockingQueue<ILoggingEvent> queue;
+
+    private Thread worker;
+
+    /**
+     * Returns the number of events dropped by all instances since startup.
+     */
+    static long getDropped() {
+        return DROPPED.sum();
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    @Override
+    public void start() {
+        if (isStarted()) {
+            return;
+        }
+
+        if (this.queueSize < 1) {
+            addError("Invalid queue size [" + this.queueSize + "]");
+            return;
+        }
+
+        this.queue = new ArrayBlockingQueue<>(this.queueSize);
+        this.worker = new Thread(this::drain, "access-log-" + getName());
+        this.worker.setDaemon(true);
+
+        super.start();
+        this.worker.start();
+    }
+
+    @Override
+    public void stop() {
+        if (!isStarted()) {
+            return;
+        }
+
+        super.stop();
+        this.worker.interrupt();
+
+        try {
+            this.worker.join(MAX_FLUSH_TIME);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.appenders.detachAndStopAllAppenders();
+    }
+
+    @Override
+    protected void append(ILoggingEvent eventObject) {
+        eventObject.prepareForDeferredProcessing();
+
+        if (!this.queue.offer(eventObject)) {
+            DROPPED.increment();
+        }
+    }
+
+    @Override
+    public void addAppender(Appender<ILoggingEvent> newAppender) {
+        this.appenders.addAppender(newAppender);
+    }
+
+    @Override
+    public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() {
+        return this.appenders.iteratorForAppenders();
+    }
+
+    @Override
+    public Appender<ILoggingEvent> getAppender(String name) {
+        return this.appenders.getAppender(name);
+    }
+
+    @Override
+    public boolean isAttached(Appender<ILoggingEvent> appender) {
+        return this.appenders.isAttached(appender);
+    }
+
+    @Override
+    public void detachAndStopAllAppenders() {
+        this.appenders.detachAndStopAllAppenders();
+    }
+
+    @Override
+    public boolean detachAppender(Appender<ILoggingEvent> appender) {
+        return this.appenders.detachAppender(appender);
+    }
+
+    @Override
+    public boolean detachAppender(String name) {
+        return this.appenders.detachAppender(name);
+    }
+
+    private void drain() {
+        try {
+            while (isStarted()) {
+                this.appenders.appendLoopOnAppenders(this.queue.take());
+            }
+        } catch (InterruptedException e) {
+            // stopping
+        }
+
+        for (ILoggingEvent event = this.queue.poll(); event != null; event = this.queue.poll()) {
+            this.appenders.appendLoopOnAppenders(event);
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.cloudfoundry.example.Controller.FORWARDED_FOR;
+import static org.cloudfoundry.example.Controller.FORWARDED_URL;
+
+/**
+ * Checks route service requests against the allowlist before handler mapping, so that denied requests never reach the
+ * {@link Controller}.  A denial is answered from a single preallocated, read-only body that is shared by every denied
+ * response.  The request body is never relayed: a body declared no larger than {@code DENIED_BODY_DRAIN_LIMIT} is read
+ * and discarded so the connection can be reused, and any other body is left unread and the connection closed after
+ * the response.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+final class AllowlistFilter implements WebFilter {
+
+    private static final ByteBuffer DENIED = body("Access is not allowed!");
+
+    private final Policies policies;
+
+    private final AccessLog accessLog;
+
+    private final ProxyMetrics proxyMetrics;
+
+    private final Warmup warmup;
+
+    private final long drainLimit;
+
+    AllowlistFilter(Policies policies, AccessLog accessLog, ProxyMetrics proxyMetrics, Warmup warmup,
+                    @Value("${DENIED_BODY_DRAIN_LIMIT:65536}") long drainLimit) {
+
+        this.policies = policies;
+        this.accessLog = accessLog;
+        this.proxyMetrics = proxyMetrics;
+        this.warmup = warmup;
+        this.drainLimit = drainLimit;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        HttpHeaders headers = exchange.getRequest().getHeaders();
+
+        String forwardedUrl = headers.getFirst(FORWARDED_URL);
+        if (forwardedUrl == null || this.warmup.isWarmupRequest(exchange.getRequest())) {
+            return chain.filter(exchange);
+        }
+
+        String forwardedIPs = headers.getFirst(FORWARDED_FOR);
+        if (forwardedIPs == null) {
+            forwardedIPs = "";
+        }
+
+        String forwardedHost = Controller.getForwardedHost(forwardedUrl);
+        boolean allowed = this.policies.get().getAllowlist(forwardedHost).matchesAny(forwardedIPs);
+        this.proxyMetrics.allowlist(allowed);
+
+        return allowed ? chain.filter(exchange) : deny(exchange, forwardedUrl, forwardedIPs, forwardedHost);
+    }
+
+    private static ByteBuffer body(String message) {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private Mono<Void> deny(ServerWebExchange exchange, String forwardedUrl, String forwardedIPs, String forwardedHost) {
+        ServerHttpRequest request = exchange.getRequest();
+        ServerHttpResponse response = exchange.getResponse();
+
+        AccessLog.Entry accessLogEntry = this.accessLog.start(request.getMethod(), forwardedUrl, forwardedIPs, request.getHeaders());
+        ProxyMetrics.Exchange metricsExchange = this.proxyMetrics.start(forwardedHost);
+
+        response.setStatusCode(HttpStatus.FORBIDDEN);
+        response.getHeaders().setContentType(MediaType.TEXT_PLAIN);
+        response.getHeaders().setContentLength(DENIED.remaining());
+
+        Mono<Void> drain = Mono.empty();
+        if (hasBody(request.getHeaders())) {
+            if (isDrained(request.getHeaders().getContentLength())) {
+                drain = request.getBody()
+                    .doOnNext(DataBufferUtils::release)
+                    .then();
+            } else {
+                response.getHeaders().setConnection("close");
+            }
+        }
+
+        DataBuffer body = response.bufferFactory().wrap(DENIED.duplicate());
+
+        accessLogEntry.response(HttpStatus.FORBIDDEN, response.getHeaders());
+        accessLogEntry.body(body);
+        metricsExchange.response(HttpStatus.FORBIDDEN);
+        metricsExchange.responseBody(body);
+
+        return drain
+            .then(Mono.defer(() -> response.writeWith(Mono.just(body))))
+            .doOnError(error -> {
+                accessLogEntry.failed(error);
+                metricsExchange.failed();
+            })
+            .doFinally(signal -> {
+                accessLogEntry.complete();
+                metricsExchange.complete();
+            });
+    }
+
+    private static boolean hasBody(HttpHeaders headers) {
+        return headers.getContentLength() > 0 || headers.containsKey(HttpHeaders.TRANSFER_ENCODING);
+    }
+
+    private boolean isDrained(long contentLength) {
+        return contentLength >= 0 && contentLength <= this.drainLimit;
+    }
+
+}
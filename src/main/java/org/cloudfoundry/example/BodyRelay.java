@@ -0,0 +1,390 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.reactivestreams.Subscription;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Component;
+import reactor.core.CoreSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Operators;
+import reactor.util.concurrent.Queues;
+import reactor.util.context.Context;
+
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Relays request and response bodies between the inbound and upstream connections.
+ * <p>
+ * Each relay holds a bounded buffer between its source and its subscriber.  It requests at most {@code prefetch}
+ * buffers ahead of its subscriber, and stops requesting once the bytes it holds reach the high watermark until they
+ * drain to the low watermark, so the memory held per exchange does not depend on how fast the far side reads.  A body
+ * that exceeds its size limit fails with {@link BodyTooLargeException}.  Buffers held by a relay are released when it is
+ * cancelled or fails, and buffers that arrive after it has terminated are released immediately.
+ */
+@Component
+final class BodyRelay {
+
+    private final long maxRequestSize;
+
+    private final long maxResponseSize;
+
+    private final int prefetch;
+
+    private final long highWatermark;
+
+    private final long lowWatermark;
+
+    private final LongAdder requestBuffered = new LongAdder();
+
+    private final LongAdder responseBuffered = new LongAdder();
+
+    BodyRelay(MeterRegistry meterRegistry,
+              @Value("${MAX_REQUEST_BODY_SIZE:0}") long maxRequestSize,
+              @Value("${MAX_RESPONSE_BODY_SIZE:0}") long maxResponseSize,
+              @Value("${RELAY_PREFETCH:8}") int prefetch,
+              @Value("${RELAY_HIGH_WATERMARK:262144}") long highWatermark,
+              @Value("${RELAY_LOW_WATERMARK:65536}") long lowWatermark) {
+
+        this.maxRequestSize = maxRequestSize;
+        this.maxResponseSize = maxResponseSize;
+        this.prefetch = Math.max(1, prefetch);
+        this.highWatermark = highWatermark;
+        this.lowWatermark = Math.min(lowWatermark, highWatermark);
+
+        bufferedGauge(meterRegistry, "request", this.requestBuffered);
+        bufferedGauge(meterRegistry, "response", this.responseBuffered);
+    }
+
+    /**
+     * Returns whether a request should be rejected up front because of its declared {@code Content-Length}.
+     */
+    boolean isRequestTooLarge(long contentLength) {
+        return this.maxRequestSize > 0 && contentLength > this.maxRequestSize;
+    }
+
+    /**
+     * Returns whether a response should be rejected up front because of its declared {@code Content-Length}.
+     */
+    boolean isResponseTooLarge(long contentLength) {
+        return this.maxResponseSize > 0 && contentLength > this.maxResponseSize;
+    }
+
+    /**
+     * Relays a request body from the inbound connection upstream.
+     */
+    Flux<DataBuffer> request(Flux<DataBuffer> body) {
+        return new RelayFlux(body, this, this.maxRequestSize, this.requestBuffered);
+    }
+
+    /**
+     * Relays a response body from upstream to the inbound connection.
+     */
+    Flux<DataBuffer> response(Flux<DataBuffer> body) {
+        return new RelayFlux(body, this, this.maxResponseSize, this.responseBuffered);
+    }
+
+    /**
+     * Returns whether an error, or any of its causes, is a {@link BodyTooLargeException}.
+     */
+    static boolean isTooLarge(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof BodyTooLargeException) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static void bufferedGauge(MeterRegistry meterRegistry, String direction, LongAdder buffered) {
+        Gauge.builder("proxy.relay.buffered", buffered, LongAdder::sum)
+            .description("Body bytes held by relays between the inbound and upstream connections")
+            .baseUnit("bytes")
+            .tag("direction", direction)
+            .register(meterRegistry);
+    }
+
+    /**
+     * Signals that a body exceeded its size limit.
+     */
+    static final class BodyTooLargeException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private BodyTooLargeException(long maxSize) {
+            super(String.format("Body exceeds the limit of %d bytes", maxSize), null, false, false);
+        }
+
+    }
+
+    private static final class RelayFlux extends Flux<DataBuffer> {
+
+        private final Flux<DataBuffer> source;
+
+        private final BodyRelay bodyRelay;
+
+        private final long maxSize;
+
+        private final LongAdder buffered;
+
+        private RelayFlux(Flux<DataBuffer> source, BodyRelay bodyRelay, long maxSize, LongAdder buffered) {
+            this.source = source;
+            this.bodyRelay = bodyRelay;
+            this.maxSize = maxSize;
+            this.buffered = buffered;
+        }
+
+        @Override
+        public void subscribe(CoreSubscriber<? super DataBuffer> actual) {
+            this.source.subscribe(new Relay(actual, this.bodyRelay, this.maxSize, this.buffered));
+        }
+
+    }
+
+    private static final class Relay implements CoreSubscriber<DataBuffer>, Subscription {
+
+        private static final AtomicIntegerFieldUpdater<Relay> WIP = AtomicIntegerFieldUpdater.newUpdater(Relay.class, "wip");
+
+        private static final AtomicLongFieldUpdater<Relay> REQUESTED = AtomicLongFieldUpdater.newUpdater(Relay.class, "requested");
+
+        private static final AtomicLongFieldUpdater<Relay> QUEUED_BYTES = AtomicLongFieldUpdater.newUpdater(Relay.class, "queuedBytes");
+
+        private final Queue<DataBuffer> queue = Queues.<DataBuffer>unbounded().get();
+
+        private final CoreSubscriber<? super DataBuffer> actual;
+
+        private final BodyRelay bodyRelay;
+
+        private final long maxSize;
+
+        private final LongAdder buffered;
+
+        private Subscription upstream;
+
+        private long received;
+
+        private long ahead;
+
+        private boolean paused;
+
+        private Throwable error;
+
+        private volatile boolean done;
+
+        private volatile boolean disposed;
+
+        private volatile int wip;
+
+        private volatile long requested;
+
+        private volatile long queuedBytes;
+
+        private Relay(CoreSubscriber<? super DataBuffer> actual, BodyRelay bodyRelay, long maxSize, LongAdder buffered) {
+            this.actual = actual;
+            this.bodyRelay = bodyRelay;
+            this.maxSize = maxSize;
+            this.buffered = buffered;
+        }
+
+        @Override
+        public Context currentContext() {
+            return this.actual.currentContext();
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (Operators.validate(this.upstream, s)) {
+                this.upstream = s;
+                this.actual.onSubscribe(this);
+                drain();
+            }
+        }
+
+        @Override
+        public void onNext(DataBuffer buffer) {
+            if (this.done || this.disposed) {
+                DataBufferUtils.release(buffer);
+                return;
+            }
+
+            int size = buffer.readableByteCount();
+            this.received += size;
+            if (this.maxSize > 0 && this.received > this.maxSize) {
+                DataBufferUtils.release(buffer);
+                this.upstream.cancel();
+                onError(new BodyTooLargeException(this.maxSize));
+                return;
+            }
+
+            QUEUED_BYTES.addAndGet(this, size);
+            this.buffered.add(size);
+            this.queue.offer(buffer);
+
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (this.done) {
+                Operators.onErrorDropped(t, currentContext());
+                return;
+            }
+
+            this.error = t;
+            this.done = true;
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            if (this.done) {
+                return;
+            }
+
+            this.done = true;
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (Operators.validate(n)) {
+                Operators.addCap(REQUESTED, this, n);
+                drain();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (!this.disposed) {
+                this.disposed = true;
+                this.upstream.cancel();
+                drain();
+            }
+        }
+
+        private void drain() {
+            if (WIP.getAndIncrement(this) != 0) {
+                return;
+            }
+
+            int missed = 1;
+            for (;;) {
+                if (this.disposed) {
+                    clear();
+                } else {
+                    emit();
+                }
+
+                missed = WIP.addAndGet(this, -missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void emit() {
+            long requested = this.requested;
+            long emitted = 0;
+
+            for (;;) {
+                if (this.disposed) {
+                    return;
+                }
+
+                boolean done = this.done;
+
+                if (done && this.error != null) {
+                    terminate(this.error);
+                    return;
+                }
+
+                DataBuffer buffer = emitted != requested ? this.queue.poll() : null;
+                if (buffer == null) {
+                    if (done && this.queue.isEmpty()) {
+                        terminate(null);
+                        return;
+                    }
+                    break;
+                }
+
+                dequeued(buffer.readableByteCount());
+                this.ahead--;
+                this.actual.onNext(buffer);
+                emitted++;
+            }
+
+            if (emitted != 0 && requested != Long.MAX_VALUE) {
+                REQUESTED.addAndGet(this, -emitted);
+            }
+
+            replenish();
+        }
+
+        private void replenish() {
+            long queued = this.queuedBytes;
+            if (this.paused) {
+                this.paused = queued > this.bodyRelay.lowWatermark;
+            } else {
+                this.paused = queued >= this.bodyRelay.highWatermark;
+            }
+
+            if (this.paused || this.done) {
+                return;
+            }
+
+            if (this.ahead <= this.bodyRelay.prefetch / 2) {
+                long n = this.bodyRelay.prefetch - this.ahead;
+                this.ahead += n;
+                this.upstream.request(n);
+            }
+        }
+
+        private void terminate(Throwable error) {
+            this.disposed = true;
+            clear();
+
+            if (error != null) {
+                this.actual.onError(error);
+            } else {
+                this.actual.onComplete();
+            }
+        }
+
+        private void clear() {
+            DataBuffer buffer;
+            while ((buffer = this.queue.poll()) != null) {
+                dequeued(buffer.readableByteCount());
+                DataBufferUtils.release(buffer);
+            }
+        }
+
+        private void dequeued(int size) {
+            QUEUED_BYTES.addAndGet(this, -size);
+            this.buffered.add(-size);
+        }
+
+    }
+
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Per-host circuit breakers for upstream requests.
+ * <p>
+ * Each forwarded host has a breaker that records the outcome of its most recent calls in a fixed-size ring.  Slots are
+ * claimed with an atomic counter and replaced with an atomic swap, and the failure and slow-call counts are adjusted by
+ * the difference, so recording never locks.  Once the window holds at least the minimum number of calls and either
+ * rate reaches its threshold, the breaker opens and calls fail fast.  After the open duration a limited number of probe
+ * calls are let through; if they all succeed the breaker closes with an empty window, otherwise it opens again.
+ * Outcomes of calls permitted before a state change are ignored.
+ * <p>
+ * Breakers are disabled unless a window size is configured.  Only transport errors and timeouts count as failures
+ * unless server error responses are configured to, since an application may legitimately return them.
+ */
+@Component
+final class CircuitBreakers {
+
+    private static final int SUCCESS = 1;
+
+    private static final int FAILURE = 2;
+
+    private static final int SLOW = 4;
+
+    private final Cache<String, Breaker> breakers;
+
+    private final int windowSize;
+
+    private final int minimumCalls;
+
+    private final int failureRateThreshold;
+
+    private final boolean serverErrorsFail;
+
+    private final int slowCallRateThreshold;
+
+    private final long slowCallDuration;
+
+    private final long openDuration;
+
+    private final int halfOpenCalls;
+
+    private final Counter rejections;
+
+    private final Counter opened;
+
+    CircuitBreakers(MeterRegistry meterRegistry,
+                    @Value("${CIRCUIT_BREAKER_WINDOW_SIZE:0}") int windowSize,
+                    @Value("${CIRCUIT_BREAKER_MINIMUM_CALLS:20}") int minimumCalls,
+                    @Value("${CIRCUIT_BREAKER_FAILURE_RATE:50}") int failureRateThreshold,
+                    @Value("${CIRCUIT_BREAKER_SERVER_ERRORS:false}") boolean serverErrorsFail,
+                    @Value("${CIRCUIT_BREAKER_SLOW_CALL_RATE:100}") int slowCallRateThreshold,
+                    @Value("${CIRCUIT_BREAKER_SLOW_CALL_DURATION:0}") long slowCallDuration,
+                    @Value("${CIRCUIT_BREAKER_OPEN_DURATION:30000}") long openDuration,
+                    @Value("${CIRCUIT_BREAKER_HALF_OPEN_CALLS:5}") int halfOpenCalls,
+                    @Value("${CIRCUIT_BREAKER_MAX_HOSTS:10000}") long maxHosts) {
+
+        this.windowSize = windowSize;
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, windowSize));
+        this.failureRateThreshold = failureRateThreshold;
+        this.serverErrorsFail = serverErrorsFail;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallDuration = TimeUnit.MILLISECONDS.toNanos(slowCallDuration);
+        this.openDuration = TimeUnit.MILLISECONDS.toNanos(openDuration);
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+
+        this.breakers = Caffeine.newBuilder()
+            .maximumSize(maxHosts)
+            .expireAfterAccess(Math.max(this.openDuration, TimeUnit.MINUTES.toNanos(10)), TimeUnit.NANOSECONDS)
+            .build();
+
+        this.rejections = Counter.builder("circuit.breaker.rejections")
+            .description("Requests rejected because the circuit breaker for their host was open")
+            .register(meterRegistry);
+        this.opened = Counter.builder("circuit.breaker.opened")
+            .description("Times a circuit breaker opened")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Asks to make a call to a host.
+     *
+     * @param forwardedHost the host the request is forwarded to
+     * @return a permit to record the call's outcome with, or {@code null} if the breaker is open
+     */
+    Permit acquire(String forwardedHost) {
+        return acquire(forwardedHost, System.nanoTime());
+    }
+
+    Permit acquire(String forwardedHost, long now) {
+        if (this.windowSize <= 0) {
+            return Permit.NONE;
+        }
+
+        Breaker breaker = this.breakers.getIfPresent(forwardedHost);
+        if (breaker == null) {
+            breaker = this.breakers.get(forwardedHost, host -> new Breaker());
+        }
+
+        Permit permit = breaker.acquire(now);
+        if (permit == null) {
+            this.rejections.increment();
+        }
+
+        return permit;
+    }
+
+    /**
+     * Returns the nanoseconds until the breaker for a host lets a probe call through, or {@code 0} if it is not open.
+     */
+    long getRetryAfter(String forwardedHost, long now) {
+        Breaker breaker = this.breakers.getIfPresent(forwardedHost);
+        if (breaker == null) {
+            return 0;
+        }
+
+        State state = breaker.state.get();
+        return state.type == StateType.OPEN ? Math.max(0, state.since + this.openDuration - now) : 0;
+    }
+
+    private enum StateType {
+
+        CLOSED, OPEN, HALF_OPEN
+
+    }
+
+    private static final class State {
+
+        private final StateType type;
+
+        private final long since;
+
+        private final AtomicInteger permits;
+
+        private final AtomicInteger succeeded = new AtomicInteger();
+
+        private State(StateType type, long since, int permits) {
+            this.type = type;
+            this.since = since;
+            this.permits = new AtomicInteger(permits);
+        }
+
+    }
+
+    /**
+     * Permission to make a call, used to record its outcome.  Only the first outcome recorded has any effect.
+     */
+    abstract static class Permit {
+
+        /**
+         * The permit for every call while breakers are disabled.  It is shared, so it records nothing.
+         */
+        static final Permit NONE = new Permit(0) {
+
+            @Override
+            void onResponse(int status) {
+            }
+
+            @Override
+            void onResponse(int status, long now) {
+            }
+
+            @Override
+            void onError() {
+            }
+
+            @Override
+            void onCancel() {
+            }
+
+            @Override
+            void record(int outcome) {
+            }
+
+        };
+
+        private final long start;
+
+        private final AtomicInteger recorded = new AtomicInteger();
+
+        private Permit(long start) {
+            this.start = start;
+        }
+
+        /**
+         * Records that the call received a response with a status.  Server errors count as failures if configured to.
+         */
+        void onResponse(int status) {
+            onResponse(status, System.nanoTime());
+        }
+
+        void onResponse(int status, long now) {
+            if (this.recorded.compareAndSet(0, 1)) {
+                record((isFailure(status) ? FAILURE : SUCCESS) | (isSlow(now - this.start) ? SLOW : 0));
+            }
+        }
+
+        /**
+         * Records that the call failed.
+         */
+        void onError() {
+            if (this.recorded.compareAndSet(0, 1)) {
+                record(FAILURE);
+            }
+        }
+
+        /**
+         * Records that the call was abandoned before completing.  The call counts towards neither rate.
+         */
+        void onCancel() {
+            if (this.recorded.compareAndSet(0, 1)) {
+                record(0);
+            }
+        }
+
+        boolean isFailure(int status) {
+            return false;
+        }
+
+        boolean isSlow(long duration) {
+            return false;
+        }
+
+        abstract void record(int outcome);
+
+    }
+
+    private final class Breaker {
+
+        private final AtomicReference<State> state = new AtomicReference<>(new State(StateType.CLOSED, 0, 0));
+
+        private final AtomicIntegerArray window = new AtomicIntegerArray(CircuitBreakers.this.windowSize);
+
+        private final AtomicLong next = new AtomicLong();
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private final AtomicInteger failures = new AtomicInteger();
+
+        private final AtomicInteger slowCalls = new AtomicInteger();
+
+        private Permit acquire(long now) {
+            for (;;) {
+                State current = this.state.get();
+
+                switch (current.type) {
+                    case CLOSED:
+                        return new BreakerPermit(this, current, now);
+                    case OPEN:
+                        if (now - current.since < CircuitBreakers.this.openDuration) {
+                            return null;
+                        }
+                        this.state.compareAndSet(current, new State(StateType.HALF_OPEN, now, CircuitBreakers.this.halfOpenCalls));
+                        break;
+                    default:
+                        return current.permits.getAndDecrement() > 0 ? new BreakerPermit(this, current, now) : null;
+                }
+            }
+        }
+
+        private void record(State permitted, int outcome) {
+            State current = this.state.get();
+            if (current != permitted) {
+                return;
+            }
+
+            if (current.type == StateType.HALF_OPEN) {
+                recordProbe(current, outcome);
+            } else if (outcome != 0) {
+                recordCall(current, outcome);
+            }
+        }
+
+        private void recordProbe(State current, int outcome) {
+            if (outcome == 0) {
+                current.permits.incrementAndGet();
+            } else if ((outcome & (FAILURE | SLOW)) != 0) {
+                open(current);
+            } else if (current.succeeded.incrementAndGet() >= CircuitBreakers.this.halfOpenCalls) {
+                if (this.state.compareAndSet(current, new State(StateType.CLOSED, System.nanoTime(), 0))) {
+                    reset();
+                }
+            }
+        }
+
+        private void recordCall(State current, int outcome) {
+            int slot = (int) (this.next.getAndIncrement() % CircuitBreakers.this.windowSize);
+            int previous = this.window.getAndSet(slot, outcome);
+
+            int calls = previous == 0 ? this.calls.incrementAndGet() : this.calls.get();
+            int failures = this.failures.addAndGet(count(outcome, FAILURE) - count(previous, FAILURE));
+            int slowCalls = this.slowCalls.addAndGet(count(outcome, SLOW) - count(previous, SLOW));
+
+            if (calls >= CircuitBreakers.this.minimumCalls &&
+                (failures * 100 >= CircuitBreakers.this.failureRateThreshold * calls ||
+                    slowCalls * 100 >= CircuitBreakers.this.slowCallRateThreshold * calls)) {
+                open(current);
+            }
+        }
+
+        private void open(State current) {
+            if (this.state.compareAndSet(current, new State(StateType.OPEN, System.nanoTime(), 0))) {
+                CircuitBreakers.this.opened.increment();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < this.window.length(); i++) {
+                int previous = this.window.getAndSet(i, 0);
+                if (previous != 0) {
+                    this.calls.decrementAndGet();
+                    this.failures.addAndGet(-count(previous, FAILURE));
+                    this.slowCalls.addAndGet(-count(previous, SLOW));
+                }
+            }
+        }
+
+        private int count(int outcome, int flag) {
+            return (outcome & flag) != 0 ? 1 : 0;
+        }
+
+    }
+
+    private final class BreakerPermit extends Permit {
+
+        private final Breaker breaker;
+
+        private final State state;
+
+        private BreakerPermit(Breaker breaker, State state, long start) {
+            super(start);
+            this.breaker = breaker;
+            this.state = state;
+        }
+
+        @Override
+        boolean isFailure(int status) {
+            return CircuitBreakers.this.serverErrorsFail && status >= 500;
+        }
+
+        @Override
+        boolean isSlow(long duration) {
+            return CircuitBreakers.this.slowCallDuration > 0 && duration >= CircuitBreakers.this.slowCallDuration;
+        }
+
+        @Override
+        void record(int outcome) {
+            this.breaker.record(this.state, outcome);
+        }
+
+    }
+
+}
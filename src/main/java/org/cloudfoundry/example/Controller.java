@@ -16,33 +16,31 @@
 
 package org.cloudfoundry.example;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.server.reactive.ServerHttpRequest;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientResponse;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import java.util.Arrays;
-import java.util.List;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 import org.springframework.core.io.buffer.DataBufferFactory;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
-import static org.springframework.http.HttpHeaders.HOST;
-import org.springframework.beans.factory.annotation.Value;
+import static org.springframework.http.HttpHeaders.RETRY_AFTER;
 
-@RestController
+/**
+ * Proxies route service requests, which are routed here by {@link ServiceHandlerMapping}.
+ */
+@Component
 final class Controller {
 
-    @Value("${VALID_IPS:}")
-    private String ValidIPs;
-
     static final String FORWARDED_URL = "X-CF-Forwarded-Url";
 
     static final String PROXY_METADATA = "X-CF-Proxy-Metadata";
@@ -51,57 +49,218 @@ final class Controller {
 
     static final String FORWARDED_FOR = "X-Forwarded-For";
 
-    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    private static final DataBufferFactory BUFFER_FACTORY = new DefaultDataBufferFactory();
+
+    private static final HttpHeaders NO_HEADERS = HttpHeaders.readOnlyHttpHeaders(new HttpHeaders());
 
     private final WebClient webClient;
 
-    Controller(WebClient webClient) {
+    private final AccessLog accessLog;
+
+    private final ResponseCache responseCache;
+
+    private final RateLimiter rateLimiter;
+
+    private final ProxyMetrics proxyMetrics;
+
+    private final ForwardedHeaders forwardedHeaders;
+
+    private final BodyRelay bodyRelay;
+
+    private final CircuitBreakers circuitBreakers;
+
+    private final ResponseTimeouts responseTimeouts;
+
+    private final SignatureVerifier signatureVerifier;
+
+    private final SingleFlight singleFlight;
+
+    private final ResponseCompression responseCompression;
+
+    private final UpstreamRetries upstreamRetries;
+
+    private final Warmup warmup;
+
+    Controller(WebClient webClient, AccessLog accessLog, ResponseCache responseCache, RateLimiter rateLimiter,
+               ProxyMetrics proxyMetrics, ForwardedHeaders forwardedHeaders, BodyRelay bodyRelay, CircuitBreakers circuitBreakers,
+               ResponseTimeouts responseTimeouts, SignatureVerifier signatureVerifier, SingleFlight singleFlight,
+               ResponseCompression responseCompression, UpstreamRetries upstreamRetries, Warmup warmup) {
         this.webClient = webClient;
+        this.accessLog = accessLog;
+        this.responseCache = responseCache;
+        this.rateLimiter = rateLimiter;
+        this.proxyMetrics = proxyMetrics;
+        this.forwardedHeaders = forwardedHeaders;
+        this.bodyRelay = bodyRelay;
+        this.circuitBreakers = circuitBreakers;
+        this.responseTimeouts = responseTimeouts;
+        this.signatureVerifier = signatureVerifier;
+        this.singleFlight = singleFlight;
+        this.responseCompression = responseCompression;
+        this.upstreamRetries = upstreamRetries;
+        this.warmup = warmup;
     }
 
-    @RequestMapping(headers = {FORWARDED_URL, PROXY_METADATA, PROXY_SIGNATURE})
     Mono<ResponseEntity<Flux<DataBuffer>>> service(ServerHttpRequest request) {
 
-        this.logger.info("Incoming Request:  {}", formatRequest(request.getMethod(), request.getURI().toString(), request.getHeaders(), ""));
-
         String forwardedUrl = getForwardedUrl(request.getHeaders());
-        HttpHeaders forwardedHttpHeaders = getForwardedHeaders(request.getHeaders());
-
-        List<String> forwardedIPs = getForwardedIPs(request.getHeaders());
-        List<String> list = Arrays.asList(ValidIPs.replaceAll("\\s+","").split(","));
-
-        if (list.stream().anyMatch(s -> forwardedIPs.contains(s))) {
-
-          this.logger.info("Outgoing Request:  {}", formatRequest(request.getMethod(), forwardedUrl, forwardedHttpHeaders, forwardedIPs.toString()));
-          return this.webClient
-              .method(request.getMethod())
-              .uri(forwardedUrl)
-              .headers(headers -> headers.putAll(forwardedHttpHeaders))
-              .body((outputMessage, context) -> outputMessage.writeWith(request.getBody()))
-              .exchange()
-              .map(response -> {
-                  this.logger.info("Outgoing Response: {}", formatResponse(response.statusCode(), response.headers().asHttpHeaders()));
-
-                  return ResponseEntity
-                      .status(response.statusCode())
-                      .headers(response.headers().asHttpHeaders())
-                      .body(response.bodyToFlux(DataBuffer.class));
-              });
+        String forwardedIPs = getForwardedIPs(request.getHeaders());
+        String forwardedHost = getForwardedHost(forwardedUrl);
+        boolean warmup = this.warmup.isWarmupRequest(request);
+        AccessLog.Entry accessLogEntry = warmup ? this.accessLog.none() : this.accessLog.start(request.getMethod(), forwardedUrl, forwardedIPs, request.getHeaders());
+        ProxyMetrics.Exchange metricsExchange = warmup ? ProxyMetrics.none() : this.proxyMetrics.start(forwardedHost);
+
+        if (!warmup && !this.signatureVerifier.verify(request.getHeaders().getFirst(PROXY_SIGNATURE), request.getHeaders().getFirst(PROXY_METADATA), forwardedUrl)) {
+            return reject(HttpStatus.BAD_REQUEST, "Invalid route service signature!", NO_HEADERS, accessLogEntry, metricsExchange);
+        }
+
+        String clientAddress = this.rateLimiter.isClientLimited() ? this.rateLimiter.getClientAddress(forwardedIPs) : null;
+        long retryAfter = warmup ? 0 : this.rateLimiter.acquire(clientAddress, forwardedHost);
+        if (retryAfter > 0) {
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(RETRY_AFTER, getRetryAfter(retryAfter));
+            return reject(HttpStatus.TOO_MANY_REQUESTS, "Too many requests!", headers, accessLogEntry, metricsExchange);
+        }
+
+        if (this.bodyRelay.isRequestTooLarge(request.getHeaders().getContentLength())) {
+            return reject(HttpStatus.PAYLOAD_TOO_LARGE, "Request body too large!", NO_HEADERS, accessLogEntry, metricsExchange);
+        }
+
+        Function<HttpHeaders, Mono<ResponseEntity<Flux<DataBuffer>>>> upstream =
+            additionalHeaders -> forward(request, forwardedUrl, forwardedHost, additionalHeaders, accessLogEntry, metricsExchange);
+
+        Mono<ResponseEntity<Flux<DataBuffer>>> response;
+        if (this.responseCache.isCacheable(request.getMethod(), request.getHeaders())) {
+            response = this.responseCache.exchange(request.getMethod(), forwardedUrl, request.getHeaders(), upstream);
+        } else if (this.singleFlight.isCoalescing(request.getMethod(), forwardedHost, request.getHeaders())) {
+            response = this.singleFlight.exchange(request.getMethod(), forwardedUrl, request.getHeaders(), () -> upstream.apply(NO_HEADERS));
         } else {
-              this.logger.info("Client not authorized! {}", forwardedIPs.toString());
-              DataBufferFactory dataBufferFactory = new DefaultDataBufferFactory();
-              DataBuffer bodybuffer = dataBufferFactory.wrap("Access is not allowed!".getBytes(StandardCharsets.UTF_8));
-
-              return Mono.just(
-                  ResponseEntity
-                  .status(HttpStatus.FORBIDDEN)
-                  .body(Flux.just(bodybuffer))
-                  );
-          }
+            response = upstream.apply(NO_HEADERS);
+        }
+
+        return response
+            .doOnError(error -> {
+                accessLogEntry.failed(error);
+                metricsExchange.failed();
+            })
+            .doOnCancel(metricsExchange::cancelled)
+            .map(entity -> this.responseCompression.compress(request.getMethod(), request.getHeaders(), entity))
+            .map(entity -> {
+                accessLogEntry.response(entity.getStatusCode(), entity.getHeaders());
+                metricsExchange.response(entity.getStatusCode());
+
+                return new ResponseEntity<>(entity.getBody()
+                    .doOnNext(buffer -> {
+                        accessLogEntry.body(buffer);
+                        metricsExchange.responseBody(buffer);
+                    })
+                    .doOnError(error -> {
+                        accessLogEntry.failed(error);
+                        metricsExchange.failed();
+                    })
+                    .doFinally(signal -> {
+                        accessLogEntry.complete();
+                        metricsExchange.complete();
+                    }), entity.getHeaders(), entity.getStatusCode());
+            });
     }
 
-    private static String formatRequest(HttpMethod method, String uri, HttpHeaders headers, String forwardedIPs) {
-        return String.format("%s %s, %s, IPs: %s", method, uri, headers, forwardedIPs);
+    private static Mono<ResponseEntity<Flux<DataBuffer>>> reject(HttpStatus status, String message, HttpHeaders headers,
+                                                                  AccessLog.Entry accessLogEntry, ProxyMetrics.Exchange metricsExchange) {
+        DataBuffer bodybuffer = getMessage(message);
+
+        accessLogEntry.response(status, headers);
+        accessLogEntry.body(bodybuffer);
+        accessLogEntry.complete();
+
+        metricsExchange.response(status);
+        metricsExchange.responseBody(bodybuffer);
+        metricsExchange.complete();
+
+        return Mono.just(
+            ResponseEntity
+            .status(status)
+            .headers(headers)
+            .body(Flux.just(bodybuffer))
+            );
+    }
+
+    private static DataBuffer getMessage(String message) {
+        return BUFFER_FACTORY.wrap(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Mono<ResponseEntity<Flux<DataBuffer>>> forward(ServerHttpRequest request, String forwardedUrl, String forwardedHost,
+                                                            HttpHeaders additionalHeaders, AccessLog.Entry accessLogEntry,
+                                                            ProxyMetrics.Exchange metricsExchange) {
+
+        CircuitBreakers.Permit permit = this.circuitBreakers.acquire(forwardedHost);
+        if (permit == null) {
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(RETRY_AFTER, getRetryAfter(this.circuitBreakers.getRetryAfter(forwardedHost, System.nanoTime())));
+            return Mono.just(new ResponseEntity<>(Flux.just(getMessage("Service unavailable!")), headers, HttpStatus.SERVICE_UNAVAILABLE));
+        }
+
+        boolean repeatable = this.upstreamRetries.isRepeatable(request.getMethod(), request.getHeaders());
+
+        Mono<ClientResponse> exchange = this.upstreamRetries
+            .exchange(forwardedHost, repeatable, () -> send(request, forwardedUrl, additionalHeaders, repeatable, metricsExchange))
+            .doOnSubscribe(subscription -> accessLogEntry.forwarded());
+
+        Duration timeout = this.responseTimeouts.get(forwardedHost);
+        if (timeout != null) {
+            exchange = exchange.timeout(timeout);
+        }
+
+        return exchange
+            .doOnNext(response -> permit.onResponse(response.statusCode().value()))
+            .doOnError(error -> {
+                if (BodyRelay.isTooLarge(error)) {
+                    permit.onCancel();
+                } else {
+                    permit.onError();
+                }
+            })
+            .doOnCancel(permit::onCancel)
+            .flatMap(response -> {
+                accessLogEntry.upstreamResponded();
+
+                if (this.bodyRelay.isResponseTooLarge(response.headers().contentLength().orElse(-1))) {
+                    return response.bodyToFlux(DataBuffer.class).take(0)
+                        .then(Mono.fromSupplier(() -> new ResponseEntity<>(Flux.just(getMessage("Response body too large!")), HttpStatus.BAD_GATEWAY)));
+                }
+
+                return Mono.just(new ResponseEntity<>(this.bodyRelay.response(response.bodyToFlux(DataBuffer.class)),
+                    ForwardedHeaders.getResponseHeaders(response.headers().asHttpHeaders()), response.statusCode()));
+            })
+            .onErrorResume(BodyRelay::isTooLarge,
+                error -> Mono.just(new ResponseEntity<>(Flux.just(getMessage("Request body too large!")), HttpStatus.PAYLOAD_TOO_LARGE)))
+            .onErrorResume(TimeoutException.class,
+                error -> Mono.just(new ResponseEntity<>(Flux.just(getMessage("Gateway timeout!")), HttpStatus.GATEWAY_TIMEOUT)));
+    }
+
+    private Mono<ClientResponse> send(ServerHttpRequest request, String forwardedUrl, HttpHeaders additionalHeaders, boolean repeatable,
+                                      ProxyMetrics.Exchange metricsExchange) {
+
+        WebClient.RequestBodySpec spec = this.webClient
+            .method(request.getMethod())
+            .uri(forwardedUrl)
+            .headers(headers -> {
+                this.forwardedHeaders.copyRequestHeaders(request, headers);
+                headers.putAll(additionalHeaders);
+            });
+
+        if (repeatable) {
+            return spec.exchange();
+        }
+
+        return spec
+            .body((outputMessage, context) -> outputMessage.writeWith(this.bodyRelay.request(request.getBody())
+                .doOnNext(metricsExchange::requestBody)))
+            .exchange();
+    }
+
+    private static String getRetryAfter(long nanos) {
+        return Long.toString(TimeUnit.NANOSECONDS.toSeconds(nanos + TimeUnit.SECONDS.toNanos(1) - 1));
     }
 
     private static String getForwardedUrl(HttpHeaders httpHeaders) {
@@ -114,24 +273,34 @@ final class Controller {
         return forwardedUrl;
     }
 
-    private static List<String> getForwardedIPs(HttpHeaders httpHeaders) {
-        String forwardedIPs = httpHeaders.getFirst(FORWARDED_FOR);
+    /**
+     * Returns the host, and port if present, of a forwarded URL.
+     */
+    static String getForwardedHost(String forwardedUrl) {
+        int scheme = forwardedUrl.indexOf("://");
+        int start = scheme < 0 ? 0 : scheme + 3;
+        int end = start;
 
-        if (forwardedIPs == null) {
-            throw new IllegalStateException(String.format("No %s header present", FORWARDED_FOR));
+        while (end < forwardedUrl.length()) {
+            char c = forwardedUrl.charAt(end);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            end++;
         }
 
-        return Arrays.asList(forwardedIPs.replaceAll("\\s+","").split(","));
+        int userInfo = forwardedUrl.lastIndexOf('@', end - 1);
+        return forwardedUrl.substring(Math.max(start, userInfo + 1), end);
     }
 
-    private String formatResponse(HttpStatus statusCode, HttpHeaders headers) {
-        return String.format("%s, %s", statusCode, headers);
-    }
+    private static String getForwardedIPs(HttpHeaders httpHeaders) {
+        String forwardedIPs = httpHeaders.getFirst(FORWARDED_FOR);
+
+        if (forwardedIPs == null) {
+            throw new IllegalStateException(String.format("No %s header present", FORWARDED_FOR));
+        }
 
-    private HttpHeaders getForwardedHeaders(HttpHeaders headers) {
-        return headers.entrySet().stream()
-            .filter(entry -> !entry.getKey().equalsIgnoreCase(FORWARDED_URL) && !entry.getKey().equalsIgnoreCase(HOST))
-            .collect(HttpHeaders::new, (httpHeaders, entry) -> httpHeaders.addAll(entry.getKey(), entry.getValue()), HttpHeaders::putAll);
+        return forwardedIPs;
     }
 
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.util.AsciiString;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.server.reactive.AbstractServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpRequestDecorator;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+import reactor.ipc.netty.http.server.HttpServerRequest;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.cloudfoundry.example.Controller.FORWARDED_FOR;
+import static org.cloudfoundry.example.Controller.FORWARDED_URL;
+
+/**
+ * Rewrites headers between the inbound and upstream exchanges.
+ * <p>
+ * Headers are copied in a single pass straight into the outgoing headers, with no intermediate map.  Inbound headers
+ * are read from the underlying Netty request when one is available.  Names are matched against precomputed
+ * {@link AsciiString}s by their case-insensitive hash, so that the common case of a header that is kept costs one hash
+ * and a few integer comparisons.  Hop-by-hop headers, and any headers nominated by {@code Connection}, are not
+ * forwarded in either direction.
+ */
+@Component
+final class ForwardedHeaders {
+
+    private static final Class<?> REACTOR_REQUEST = ClassUtils.resolveClassName("org.springframework.http.server.reactive.ReactorServerHttpRequest",
+        ForwardedHeaders.class.getClassLoader());
+
+    private static final Names HOP_BY_HOP = new Names(
+        HttpHeaderNames.CONNECTION,
+        HttpHeaderNames.KEEP_ALIVE,
+        HttpHeaderNames.PROXY_AUTHENTICATE,
+        HttpHeaderNames.PROXY_AUTHORIZATION,
+        AsciiString.cached("proxy-connection"),
+        HttpHeaderNames.TE,
+        HttpHeaderNames.TRAILER,
+        HttpHeaderNames.TRANSFER_ENCODING,
+        HttpHeaderNames.UPGRADE);
+
+    private static final Names REQUEST_EXCLUDED = HOP_BY_HOP.and(
+        AsciiString.cached(FORWARDED_URL),
+        HttpHeaderNames.HOST);
+
+    private final boolean appendForwardedFor;
+
+    ForwardedHeaders(@Value("${FORWARDED_FOR_APPEND:false}") boolean appendForwardedFor) {
+        this.appendForwardedFor = appendForwardedFor;
+    }
+
+    /**
+     * Returns whether a header applies only to a single connection and must not be forwarded.
+     */
+    static boolean isHopByHop(CharSequence name) {
+        return HOP_BY_HOP.contains(name);
+    }
+
+    /**
+     * Returns the headers of an upstream response that are returned to the client.
+     */
+    static HttpHeaders getResponseHeaders(HttpHeaders upstreamHeaders) {
+        List<String> nominated = getNominated(upstreamHeaders.get(HttpHeaders.CONNECTION));
+
+        HttpHeaders headers = new HttpHeaders();
+        for (Map.Entry<String, List<String>> entry : upstreamHeaders.entrySet()) {
+            if (!isExcluded(HOP_BY_HOP, nominated, entry.getKey())) {
+                headers.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return headers;
+    }
+
+    /**
+     * Adds the headers of an inbound request that are forwarded upstream to a set of outgoing headers.  If enabled, the
+     * address of the inbound connection is appended to {@code X-Forwarded-For}.
+     */
+    void copyRequestHeaders(ServerHttpRequest request, HttpHeaders target) {
+        io.netty.handler.codec.http.HttpHeaders nettyHeaders = getNettyHeaders(request);
+
+        if (nettyHeaders != null) {
+            List<String> nominated = getNominated(nettyHeaders.getAll(HttpHeaderNames.CONNECTION));
+
+            Iterator<Map.Entry<CharSequence, CharSequence>> entries = nettyHeaders.iteratorCharSequence();
+            while (entries.hasNext()) {
+                Map.Entry<CharSequence, CharSequence> entry = entries.next();
+                if (!isExcluded(REQUEST_EXCLUDED, nominated, entry.getKey())) {
+                    target.add(entry.getKey().toString(), entry.getValue().toString());
+                }
+            }
+        } else {
+            HttpHeaders headers = request.getHeaders();
+            List<String> nominated = getNominated(headers.get(HttpHeaders.CONNECTION));
+
+            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+                if (!isExcluded(REQUEST_EXCLUDED, nominated, entry.getKey())) {
+                    target.addAll(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        if (this.appendForwardedFor) {
+            appendForwardedFor(request.getRemoteAddress(), target);
+        }
+    }
+
+    private static void appendForwardedFor(InetSocketAddress remoteAddress, HttpHeaders target) {
+        if (remoteAddress == null || remoteAddress.getAddress() == null) {
+            return;
+        }
+
+        List<String> forwardedFor = target.get(FORWARDED_FOR);
+        String address = remoteAddress.getAddress().getHostAddress();
+
+        target.set(FORWARDED_FOR, forwardedFor == null || forwardedFor.isEmpty() ? address : String.join(", ", forwardedFor) + ", " + address);
+    }
+
+    private static io.netty.handler.codec.http.HttpHeaders getNettyHeaders(ServerHttpRequest request) {
+        while (request instanceof ServerHttpRequestDecorator) {
+            request = ((ServerHttpRequestDecorator) request).getDelegate();
+        }
+
+        if (REACTOR_REQUEST.isInstance(request)) {
+            HttpServerRequest nativeRequest = ((AbstractServerHttpRequest) request).getNativeRequest();
+            return nativeRequest.requestHeaders();
+        }
+
+        return null;
+    }
+
+    private static List<String> getNominated(List<String> connection) {
+        if (connection == null || connection.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<String> nominated = new ArrayList<>();
+        for (String value : connection) {
+            for (String token : value.split(",")) {
+                token = token.trim();
+                if (!token.isEmpty()) {
+                    nominated.add(token);
+                }
+            }
+        }
+
+        return nominated;
+    }
+
+    private static boolean isExcluded(Names excluded, List<String> nominated, CharSequence name) {
+        if (excluded.contains(name)) {
+            return true;
+        }
+
+        for (int i = 0; i < nominated.size(); i++) {
+            if (AsciiString.contentEqualsIgnoreCase(nominated.get(i), name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static final class Names {
+
+        private final AsciiString[] names;
+
+        private final int[] hashes;
+
+        private Names(AsciiString... names) {
+            this.names = names;
+            this.hashes = new int[names.length];
+            for (int i = 0; i < names.length; i++) {
+                this.hashes[i] = AsciiString.hashCode(names[i]);
+            }
+        }
+
+        private Names and(AsciiString... names) {
+            AsciiString[] combined = new AsciiString[this.names.length + names.length];
+            System.arraycopy(this.names, 0, combined, 0, this.names.length);
+            System.arraycopy(names, 0, combined, this.names.length, names.length);
+            return new Names(combined);
+        }
+
+        private boolean contains(CharSequence name) {
+            int hash = AsciiString.hashCode(name);
+            for (int i = 0; i < this.hashes.length; i++) {
+                if (this.hashes[i] == hash && this.names[i].contentEqualsIgnoreCase(name)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+    }
+
+}
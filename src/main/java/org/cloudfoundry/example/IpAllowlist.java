@@ -0,0 +1,471 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An immutable set of IPv4 and IPv6 addresses and CIDR ranges, compiled once from a comma or whitespace separated
+ * specification such as {@code 1.2.3.4, 10.0.0.0/8, 2001:db8::/32}.
+ * <p>
+ * Entries are stored as sorted, merged, inclusive ranges of packed {@code long}s so that a lookup is a binary search.
+ * {@link #matchesAny(CharSequence)} parses an {@code X-Forwarded-For} value in place, without regular expressions,
+ * substrings or intermediate collections, so that the request path does not allocate.
+ */
+final class IpAllowlist {
+
+    private static final long IPV4_MAPPED_PREFIX = 0xFFFFL;
+
+    private final Ranges ranges;
+
+    private final int entries;
+
+    private IpAllowlist(Ranges ranges, int entries) {
+        this.ranges = ranges;
+        this.entries = entries;
+    }
+
+    /**
+     * Compiles an allowlist specification.
+     *
+     * @param specification comma or whitespace separated addresses and CIDR ranges, may be empty
+     * @return the compiled allowlist
+     * @throws IllegalArgumentException if an entry is not a valid address or CIDR range
+     */
+    static IpAllowlist parse(String specification) {
+        Builder builder = new Builder();
+
+        if (specification != null) {
+            for (String entry : specification.trim().split("[,\\s]+")) {
+                if (!entry.isEmpty()) {
+                    builder.add(entry);
+                }
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Returns the number of entries the allowlist was compiled from.
+     */
+    int size() {
+        return this.entries;
+    }
+
+    /**
+     * Returns whether any of the comma separated addresses in {@code forwardedFor} is allowed.  Malformed addresses
+     * are skipped.
+     */
+    boolean matchesAny(CharSequence forwardedFor) {
+        int length = forwardedFor.length();
+        int i = 0;
+
+        while (i < length) {
+            int start = i;
+            while (i < length && forwardedFor.charAt(i) != ',') {
+                i++;
+            }
+
+            int end = i;
+            while (start < end && Character.isWhitespace(forwardedFor.charAt(start))) {
+                start++;
+            }
+            while (end > start && Character.isWhitespace(forwardedFor.charAt(end - 1))) {
+                end--;
+            }
+
+            if (start < end && matches(forwardedFor, start, end)) {
+                return true;
+            }
+
+            i++;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns whether the single address in {@code address[from, to)} is allowed.
+     */
+    boolean matches(CharSequence address, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (address.charAt(i) == ':') {
+                return parseIpv6(address, from, to, this.ranges);
+            }
+        }
+
+        long ipv4 = parseIpv4(address, from, to);
+        return ipv4 >= 0 && this.ranges.containsIpv4(ipv4);
+    }
+
+    /**
+     * Parses a dotted-quad IPv4 address.
+     *
+     * @return the address as an unsigned 32-bit value, or {@code -1} if {@code s[from, to)} is not an IPv4 address
+     */
+    static long parseIpv4(CharSequence s, int from, int to) {
+        long address = 0;
+        int octets = 0;
+        int i = from;
+
+        while (i < to) {
+            int start = i;
+            int octet = 0;
+
+            while (i < to && i - start < 3) {
+                int digit = s.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                octet = octet * 10 + digit;
+                i++;
+            }
+
+            if (i == start || octet > 255 || ++octets > 4) {
+                return -1;
+            }
+            address = (address << 8) | octet;
+
+            if (i < to) {
+                if (s.charAt(i) != '.' || octets == 4) {
+                    return -1;
+                }
+                i++;
+                if (i == to) {
+                    return -1;
+                }
+            }
+        }
+
+        return octets == 4 ? address : -1;
+    }
+
+    /**
+     * Parses an IPv6 address, including {@code ::} compression and a trailing dotted-quad, and hands the two 64-bit
+     * halves to {@code visitor}.
+     *
+     * @return the result of the visitor, or {@code false} if {@code s[from, to)} is not an IPv6 address
+     */
+    static boolean parseIpv6(CharSequence s, int from, int to, Ipv6Visitor visitor) {
+        if (to - from < 2) {
+            return false;
+        }
+
+        long headHi = 0;
+        long headLo = 0;
+        long tailHi = 0;
+        long tailLo = 0;
+        int headGroups = 0;
+        int tailGroups = 0;
+        boolean compressed = false;
+        int i = from;
+
+        if (s.charAt(i) == ':') {
+            if (s.charAt(i + 1) != ':') {
+                return false;
+            }
+            compressed = true;
+            i += 2;
+        }
+
+        while (i < to) {
+            int start = i;
+            int group = 0;
+
+            while (i < to && i - start < 4) {
+                int digit = hexDigit(s.charAt(i));
+                if (digit < 0) {
+                    break;
+                }
+                group = (group << 4) | digit;
+                i++;
+            }
+
+            int groups = 1;
+            if (i < to && s.charAt(i) == '.') {
+                long ipv4 = parseIpv4(s, start, to);
+                if (ipv4 < 0) {
+                    return false;
+                }
+                group = (int) ipv4;
+                groups = 2;
+                i = to;
+            } else if (i == start) {
+                return false;
+            }
+
+            if (headGroups + tailGroups + groups > 8) {
+                return false;
+            }
+
+            int bits = 16 * groups;
+            if (compressed) {
+                tailHi = (tailHi << bits) | (tailLo >>> (64 - bits));
+                tailLo = (tailLo << bits) | (group & 0xFFFFFFFFL);
+                tailGroups += groups;
+            } else {
+                headHi = (headHi << bits) | (headLo >>> (64 - bits));
+                headLo = (headLo << bits) | (group & 0xFFFFFFFFL);
+                headGroups += groups;
+            }
+
+            if (i == to) {
+                break;
+            }
+            if (s.charAt(i) != ':' || ++i == to) {
+                return false;
+            }
+            if (s.charAt(i) == ':') {
+                if (compressed) {
+                    return false;
+                }
+                compressed = true;
+                i++;
+            }
+        }
+
+        if (!compressed) {
+            return headGroups == 8 && visitor.visit(headHi, headLo);
+        }
+
+        if (headGroups + tailGroups > 7) {
+            return false;
+        }
+
+        if (headGroups == 0) {
+            return visitor.visit(tailHi, tailLo);
+        }
+
+        int shift = 16 * (8 - headGroups);
+        if (shift >= 64) {
+            headHi = headLo << (shift - 64);
+            headLo = 0;
+        } else {
+            headHi = (headHi << shift) | (headLo >>> (64 - shift));
+            headLo = headLo << shift;
+        }
+
+        return visitor.visit(headHi | tailHi, headLo | tailLo);
+    }
+
+    /**
+     * Receives the two 64-bit halves of a parsed IPv6 address.
+     */
+    @FunctionalInterface
+    interface Ipv6Visitor {
+
+        boolean visit(long hi, long lo);
+
+    }
+
+    private static final class Ranges implements Ipv6Visitor {
+
+        private final long[] ipv4Starts;
+
+        private final long[] ipv4Ends;
+
+        private final long[] ipv6StartHi;
+
+        private final long[] ipv6StartLo;
+
+        private final long[] ipv6EndHi;
+
+        private final long[] ipv6EndLo;
+
+        private Ranges(List<long[]> ipv4, List<long[]> ipv6) {
+            this.ipv4Starts = new long[ipv4.size()];
+            this.ipv4Ends = new long[ipv4.size()];
+            for (int i = 0; i < ipv4.size(); i++) {
+                this.ipv4Starts[i] = ipv4.get(i)[0];
+                this.ipv4Ends[i] = ipv4.get(i)[1];
+            }
+
+            this.ipv6StartHi = new long[ipv6.size()];
+            this.ipv6StartLo = new long[ipv6.size()];
+            this.ipv6EndHi = new long[ipv6.size()];
+            this.ipv6EndLo = new long[ipv6.size()];
+            for (int i = 0; i < ipv6.size(); i++) {
+                long[] range = ipv6.get(i);
+                this.ipv6StartHi[i] = range[0];
+                this.ipv6StartLo[i] = range[1];
+                this.ipv6EndHi[i] = range[2];
+                this.ipv6EndLo[i] = range[3];
+            }
+        }
+
+        private boolean containsIpv4(long address) {
+            int index = Arrays.binarySearch(this.ipv4Starts, address);
+            if (index >= 0) {
+                return true;
+            }
+
+            int floor = -index - 2;
+            return floor >= 0 && address <= this.ipv4Ends[floor];
+        }
+
+        @Override
+        public boolean visit(long hi, long lo) {
+            if (hi == 0 && (lo >>> 32) == IPV4_MAPPED_PREFIX) {
+                return containsIpv4(lo & 0xFFFFFFFFL);
+            }
+
+            int low = 0;
+            int high = this.ipv6StartHi.length - 1;
+            int floor = -1;
+
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (compare(this.ipv6StartHi[mid], this.ipv6StartLo[mid], hi, lo) <= 0) {
+                    floor = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+
+            return floor >= 0 && compare(hi, lo, this.ipv6EndHi[floor], this.ipv6EndLo[floor]) <= 0;
+        }
+
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    private static int compare(long aHi, long aLo, long bHi, long bLo) {
+        int result = Long.compareUnsigned(aHi, bHi);
+        return result != 0 ? result : Long.compareUnsigned(aLo, bLo);
+    }
+
+    private static final class Builder implements Ipv6Visitor {
+
+        private final List<long[]> ipv4 = new ArrayList<>();
+
+        private final List<long[]> ipv6 = new ArrayList<>();
+
+        private int entries;
+
+        private int prefix;
+
+        private void add(String entry) {
+            int slash = entry.indexOf('/');
+            String address = slash < 0 ? entry : entry.substring(0, slash);
+
+            if (address.indexOf(':') >= 0) {
+                this.prefix = slash < 0 ? 128 : parsePrefix(entry, slash, 128);
+                if (!parseIpv6(address, 0, address.length(), this)) {
+                    throw invalid(entry);
+                }
+            } else {
+                int prefix = slash < 0 ? 32 : parsePrefix(entry, slash, 32);
+                long ipv4 = parseIpv4(address, 0, address.length());
+                if (ipv4 < 0) {
+                    throw invalid(entry);
+                }
+                addIpv4(ipv4, prefix);
+            }
+
+            this.entries++;
+        }
+
+        @Override
+        public boolean visit(long hi, long lo) {
+            if (hi == 0 && (lo >>> 32) == IPV4_MAPPED_PREFIX && this.prefix >= 96) {
+                addIpv4(lo & 0xFFFFFFFFL, this.prefix - 96);
+                return true;
+            }
+
+            long maskHi;
+            long maskLo;
+            if (this.prefix >= 64) {
+                maskHi = -1L;
+                maskLo = this.prefix == 64 ? 0 : -1L << (128 - this.prefix);
+            } else {
+                maskHi = this.prefix == 0 ? 0 : -1L << (64 - this.prefix);
+                maskLo = 0;
+            }
+
+            this.ipv6.add(new long[]{hi & maskHi, lo & maskLo, hi | ~maskHi, lo | ~maskLo});
+            return true;
+        }
+
+        private void addIpv4(long address, int prefix) {
+            long mask = prefix == 0 ? 0 : (0xFFFFFFFFL << (32 - prefix)) & 0xFFFFFFFFL;
+            this.ipv4.add(new long[]{address & mask, address | (~mask & 0xFFFFFFFFL)});
+        }
+
+        private IpAllowlist build() {
+            this.ipv4.sort(Comparator.comparingLong(range -> range[0]));
+            List<long[]> ipv4 = new ArrayList<>();
+            for (long[] range : this.ipv4) {
+                long[] last = ipv4.isEmpty() ? null : ipv4.get(ipv4.size() - 1);
+                if (last != null && range[0] <= last[1] + 1) {
+                    last[1] = Math.max(last[1], range[1]);
+                } else {
+                    ipv4.add(range);
+                }
+            }
+
+            this.ipv6.sort((a, b) -> compare(a[0], a[1], b[0], b[1]));
+            List<long[]> ipv6 = new ArrayList<>();
+            for (long[] range : this.ipv6) {
+                long[] last = ipv6.isEmpty() ? null : ipv6.get(ipv6.size() - 1);
+                if (last != null && compare(range[0], range[1], last[2], last[3]) <= 0) {
+                    if (compare(range[2], range[3], last[2], last[3]) > 0) {
+                        last[2] = range[2];
+                        last[3] = range[3];
+                    }
+                } else {
+                    ipv6.add(range);
+                }
+            }
+
+            return new IpAllowlist(new Ranges(ipv4, ipv6), this.entries);
+        }
+
+        private static int parsePrefix(String entry, int slash, int max) {
+            try {
+                int prefix = Integer.parseInt(entry.substring(slash + 1));
+                if (prefix < 0 || prefix > max) {
+                    throw invalid(entry);
+                }
+                return prefix;
+            } catch (NumberFormatException ex) {
+                throw invalid(entry);
+            }
+        }
+
+        private static IllegalArgumentException invalid(String entry) {
+            return new IllegalArgumentException(String.format("Invalid IP address or CIDR range '%s'", entry));
+        }
+
+    }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the current {@link Policy}.
+ * <p>
+ * The policy is read from {@code POLICY_FILE} if it is set, and from {@code VALID_IPS} otherwise.  A daemon thread
+ * watches the file's directory and reloads the policy when the file changes, and a policy can also be pushed through
+ * {@link PolicyEndpoint}.  Each new policy is compiled by the thread that loads it and then published with a single
+ * volatile write, so requests read a consistent snapshot without locking.  Loads are serialized so that a slow load
+ * cannot replace a newer policy, and a policy that fails to load leaves the current one in place.
+ */
+@Component
+final class Policies {
+
+    private static final long SETTLE_MILLIS = 100;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final AtomicLong versions = new AtomicLong();
+
+    private final String validIps;
+
+    private final Path file;
+
+    private final Counter succeeded;
+
+    private final Counter failed;
+
+    private volatile Policy policy;
+
+    private WatchService watchService;
+
+    Policies(MeterRegistry meterRegistry,
+             @Value("${VALID_IPS:}") String validIps,
+             @Value("${POLICY_FILE:}") String file) {
+
+        this.validIps = validIps;
+        this.file = file.isEmpty() ? null : Paths.get(file).toAbsolutePath();
+        this.policy = load();
+
+        this.succeeded = reloadCounter(meterRegistry, "success");
+        this.failed = reloadCounter(meterRegistry, "failure");
+        Gauge.builder("policy.version", this, policies -> policies.policy.getVersion())
+            .description("Version of the access policy in effect")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Returns the current policy.
+     */
+    Policy get() {
+        return this.policy;
+    }
+
+    /**
+     * Reloads the policy from {@code POLICY_FILE}, or {@code VALID_IPS} if it is not set.
+     *
+     * @return the new policy
+     * @throws IllegalArgumentException if the policy is invalid
+     * @throws UncheckedIOException     if the policy file cannot be read
+     */
+    synchronized Policy reload() {
+        try {
+            return publish(load());
+        } catch (RuntimeException e) {
+            this.failed.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Replaces the policy with one compiled from a specification.  The policy is replaced again if the policy file
+     * changes.
+     *
+     * @param specification the policy specification
+     * @return the new policy
+     * @throws IllegalArgumentException if the policy is invalid
+     */
+    synchronized Policy update(String specification) {
+        try {
+            return publish(Policy.parse(this.versions.incrementAndGet(), "endpoint", specification, this.validIps));
+        } catch (RuntimeException e) {
+            this.failed.increment();
+            throw e;
+        }
+    }
+
+    @PostConstruct
+    void start() throws IOException {
+        if (this.file == null) {
+            return;
+        }
+
+        this.watchService = this.file.getFileSystem().newWatchService();
+        this.file.getParent().register(this.watchService,
+            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+
+        Thread watcher = new Thread(this::watch, "policy-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @PreDestroy
+    void stop() throws IOException {
+        if (this.watchService != null) {
+            this.watchService.close();
+        }
+    }
+
+    private Policy load() {
+        long version = this.versions.incrementAndGet();
+
+        if (this.file == null) {
+            return Policy.parse(version, "VALID_IPS", null, this.validIps);
+        }
+
+        try {
+            return Policy.parse(version, this.file.toString(), new String(Files.readAllBytes(this.file), StandardCharsets.UTF_8), this.validIps);
+        } catch (IOException e) {
+            throw new UncheckedIOException(String.format("Unable to read policy file %s", this.file), e);
+        }
+    }
+
+    private Policy publish(Policy policy) {
+        this.policy = policy;
+        this.succeeded.increment();
+        this.logger.info("Loaded policy version {} from {} with {} allowlist entries and {} host overrides",
+            policy.getVersion(), policy.getSource(), policy.getAllowlist().size(), policy.getHostAllowlists().size());
+        return policy;
+    }
+
+    private void watch() {
+        try {
+            for (;;) {
+                boolean changed = isChanged(this.watchService.take());
+
+                // Editors and deployment tools tend to write a file in several steps, so wait for events to settle
+                WatchKey key;
+                while ((key = this.watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= isChanged(key);
+                }
+
+                if (changed && Files.exists(this.file)) {
+                    try {
+                        reload();
+                    } catch (RuntimeException e) {
+                        this.logger.error("Keeping policy version {}: {}", this.policy.getVersion(), e.getMessage());
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            this.logger.debug("Stopped watching {}", this.file);
+        }
+    }
+
+    private boolean isChanged(WatchKey key) {
+        boolean changed = false;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || this.file.getFileName().equals(event.context());
+        }
+        key.reset();
+
+        return changed;
+    }
+
+    private static Counter reloadCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("policy.reloads")
+            .description("Attempts to replace the access policy")
+            .tag("result", result)
+            .register(meterRegistry);
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the access policy: the default allowlist and the allowlists that replace it for particular
+ * forwarded hosts.
+ * <p>
+ * A policy specification is a list of {@code key = entries} lines, separated by newlines or semicolons, where the key
+ * is either {@code valid-ips} for the default allowlist or a forwarded host, and port if any, for an override.  Blank
+ * lines and lines starting with {@code #} are ignored.  For example:
+ * <pre>
+ * valid-ips = 1.2.3.4, 10.0.0.0/8
+ * admin.example.com = 10.1.0.0/16
+ * </pre>
+ */
+final class Policy {
+
+    static final String VALID_IPS = "valid-ips";
+
+    private final long version;
+
+    private final String source;
+
+    private final Instant loaded;
+
+    private final IpAllowlist allowlist;
+
+    private final Map<String, IpAllowlist> hostAllowlists;
+
+    private Policy(long version, String source, Instant loaded, IpAllowlist allowlist, Map<String, IpAllowlist> hostAllowlists) {
+        this.version = version;
+        this.source = source;
+        this.loaded = loaded;
+        this.allowlist = allowlist;
+        this.hostAllowlists = hostAllowlists;
+    }
+
+    /**
+     * Compiles a policy specification.
+     *
+     * @param version          the version of the policy
+     * @param source           a description of where the specification came from
+     * @param specification    the policy specification, may be empty
+     * @param defaultValidIps  the default allowlist specification if {@code specification} does not contain one
+     * @return the compiled policy
+     * @throws IllegalArgumentException if a line or allowlist entry is invalid
+     */
+    static Policy parse(long version, String source, String specification, String defaultValidIps) {
+        String validIps = defaultValidIps;
+        Map<String, IpAllowlist> hostAllowlists = new HashMap<>();
+
+        if (specification != null) {
+            for (String line : specification.split("[;\\r\\n]+")) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                int separator = line.indexOf('=');
+                if (separator <= 0) {
+                    throw new IllegalArgumentException(String.format("Invalid policy line '%s'", line));
+                }
+
+                String key = line.substring(0, separator).trim().toLowerCase(Locale.ROOT);
+                String entries = line.substring(separator + 1);
+
+                if (VALID_IPS.equals(key)) {
+                    validIps = entries;
+                } else {
+                    hostAllowlists.put(key, IpAllowlist.parse(entries));
+                }
+            }
+        }
+
+        return new Policy(version, source, Instant.now(), IpAllowlist.parse(validIps), Collections.unmodifiableMap(hostAllowlists));
+    }
+
+    /**
+     * Returns the allowlist that applies to a forwarded host.
+     */
+    IpAllowlist getAllowlist(String forwardedHost) {
+        if (!this.hostAllowlists.isEmpty()) {
+            IpAllowlist allowlist = this.hostAllowlists.get(forwardedHost.toLowerCase(Locale.ROOT));
+            if (allowlist != null) {
+                return allowlist;
+            }
+        }
+
+        return this.allowlist;
+    }
+
+    /**
+     * Returns the default allowlist.
+     */
+    IpAllowlist getAllowlist() {
+        return this.allowlist;
+    }
+
+    /**
+     * Returns the allowlist overrides by forwarded host.
+     */
+    Map<String, IpAllowlist> getHostAllowlists() {
+        return this.hostAllowlists;
+    }
+
+    Instant getLoaded() {
+        return this.loaded;
+    }
+
+    String getSource() {
+        return this.source;
+    }
+
+    long getVersion() {
+        return this.version;
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Actuator endpoint at {@code /actuator/policy} that shows the current {@link Policy} and replaces it.  A {@code POST}
+ * with a {@code policy} specification replaces the policy with it, and one without reloads the policy from its source.
+ * <p>
+ * The endpoint is served on the application's own port, so it only exists if {@code POLICY_ENDPOINT_ENABLED} is
+ * {@code true}, and requests to it must carry {@code POLICY_ENDPOINT_TOKEN} (see {@link PolicyEndpointFilter}).  Public
+ * because the actuator invokes its operations reflectively.
+ */
+@Component
+@ConditionalOnProperty(name = "POLICY_ENDPOINT_ENABLED", havingValue = "true")
+@Endpoint(id = "policy")
+public final class PolicyEndpoint {
+
+    private final Policies policies;
+
+    PolicyEndpoint(Policies policies) {
+        this.policies = policies;
+    }
+
+    @ReadOperation
+    public Map<String, Object> policy() {
+        return describe(this.policies.get());
+    }
+
+    @WriteOperation
+    public Map<String, Object> update(@Nullable String policy) {
+        try {
+            return describe(policy == null ? this.policies.reload() : this.policies.update(policy));
+        } catch (IllegalArgumentException e) {
+            throw new InvalidEndpointRequestException(e.getMessage(), e.getMessage());
+        }
+    }
+
+    private static Map<String, Object> describe(Policy policy) {
+        Map<String, Integer> hosts = new TreeMap<>();
+        policy.getHostAllowlists().forEach((host, allowlist) -> hosts.put(host, allowlist.size()));
+
+        Map<String, Object> description = new LinkedHashMap<>();
+        description.put("version", policy.getVersion());
+        description.put("source", policy.getSource());
+        description.put("loaded", policy.getLoaded().toString());
+        description.put(Policy.VALID_IPS, policy.getAllowlist().size());
+        description.put("hosts", hosts);
+        return description;
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import org.springframework.web.util.pattern.PathPattern;
+import org.springframework.web.util.pattern.PathPatternParser;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Requires {@code Authorization: Bearer} with {@code POLICY_ENDPOINT_TOKEN} for every request to the {@link
+ * PolicyEndpoint}.  The endpoint is served on the application's own port, which the Gorouter must reach and is
+ * therefore publicly routable, so it cannot be enabled without a token.  The token is compared in constant time.
+ */
+@Component
+@ConditionalOnProperty(name = "POLICY_ENDPOINT_ENABLED", havingValue = "true")
+@Order(Ordered.HIGHEST_PRECEDENCE + 1)
+final class PolicyEndpointFilter implements WebFilter {
+
+    private static final String BEARER = "Bearer ";
+
+    private final PathPattern path;
+
+    private final byte[] token;
+
+    PolicyEndpointFilter(@Value("${management.endpoints.web.base-path:/actuator}") String basePath,
+                         @Value("${POLICY_ENDPOINT_TOKEN:}") String token) {
+
+        if (token.trim().isEmpty()) {
+            throw new IllegalStateException("POLICY_ENDPOINT_TOKEN must be set if POLICY_ENDPOINT_ENABLED is true");
+        }
+
+        this.path = new PathPatternParser().parse(basePath + "/policy/**");
+        this.token = token.trim().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        if (!this.path.matches(exchange.getRequest().getPath().pathWithinApplication())
+            || isAuthorized(exchange.getRequest().getHeaders().getFirst(HttpHeaders.AUTHORIZATION))) {
+            return chain.filter(exchange);
+        }
+
+        ServerHttpResponse response = exchange.getResponse();
+        response.setStatusCode(HttpStatus.UNAUTHORIZED);
+        response.getHeaders().set(HttpHeaders.WWW_AUTHENTICATE, "Bearer");
+        return response.setComplete();
+    }
+
+    private boolean isAuthorized(String authorization) {
+        if (authorization == null || !authorization.regionMatches(true, 0, BEARER, 0, BEARER.length())) {
+            return false;
+        }
+
+        return MessageDigest.isEqual(this.token, authorization.substring(BEARER.length()).trim().getBytes(StandardCharsets.UTF_8));
+    }
+
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency, throughput and denial metrics for proxied exchanges.
+ * <p>
+ * Latencies are recorded in timers whose percentiles are computed in-process from time-windowed HdrHistogram
+ * recorders.  Meters are tagged with the forwarded host and the class of the response status.  The meters of each host
+ * are resolved once and held in a bounded table so that recording does not look them up in the registry; hosts beyond
+ * the bound share the {@code other} tag.
+ */
+@Component
+final class ProxyMetrics {
+
+    private static final String OTHER_HOST = "other";
+
+    private static final String[] STATUS_CLASSES = {"cancelled", "1xx", "2xx", "3xx", "4xx", "5xx"};
+
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final MeterRegistry meterRegistry;
+
+    private final double[] percentiles;
+
+    private final boolean percentileHistogram;
+
+    private final int maxHosts;
+
+    private final Counter allowed;
+
+    private final Counter denied;
+
+    ProxyMetrics(MeterRegistry meterRegistry,
+                 @Value("${METRICS_PERCENTILES:0.5,0.95,0.99}") double[] percentiles,
+                 @Value("${METRICS_PERCENTILE_HISTOGRAM:false}") boolean percentileHistogram,
+                 @Value("${METRICS_MAX_HOSTS:100}") int maxHosts) {
+
+        this.meterRegistry = meterRegistry;
+        this.percentiles = percentiles;
+        this.percentileHistogram = percentileHistogram;
+        this.maxHosts = maxHosts;
+
+        this.allowed = allowlistCounter(meterRegistry, "allowed");
+        this.denied = allowlistCounter(meterRegistry, "denied");
+
+        Gauge.builder("proxy.active", this.active, AtomicInteger::get)
+            .description("Exchanges in flight")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Returns an exchange that ignores all updates, for exchanges that must not be measured.
+     */
+    static Exchange none() {
+        return Exchange.NONE;
+    }
+
+    /**
+     * Starts measuring an exchange.
+     */
+    Exchange start(String forwardedHost) {
+        this.active.incrementAndGet();
+        return new Exchange(this, getHost(forwardedHost));
+    }
+
+    /**
+     * Records the result of an allowlist check.
+     */
+    void allowlist(boolean matched) {
+        (matched ? this.allowed : this.denied).increment();
+    }
+
+    private static Counter allowlistCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("proxy.allowlist")
+            .description("Requests checked against the IP allowlist")
+            .tag("result", result)
+            .register(meterRegistry);
+    }
+
+    private Host getHost(String name) {
+        Host host = this.hosts.get(name);
+        if (host != null) {
+            return host;
+        }
+
+        return this.hosts.computeIfAbsent(this.hosts.size() < this.maxHosts ? name : OTHER_HOST, Host::new);
+    }
+
+    private static int getStatusClass(int status) {
+        int statusClass = status / 100;
+        return statusClass > 0 && statusClass < STATUS_CLASSES.length ? statusClass : 0;
+    }
+
+    private final class Host {
+
+        private final String name;
+
+        private final Counter requestBytes;
+
+        private final Counter responseBytes;
+
+        private final AtomicReferenceArray<Timer> firstByte = new AtomicReferenceArray<>(STATUS_CLASSES.length);
+
+        private final AtomicReferenceArray<Timer> duration = new AtomicReferenceArray<>(STATUS_CLASSES.length);
+
+        private Host(String name) {
+            this.name = name;
+            this.requestBytes = Counter.builder("proxy.request.bytes")
+                .description("Request body bytes forwarded upstream")
+                .baseUnit("bytes")
+                .tag("host", name)
+                .register(ProxyMetrics.this.meterRegistry);
+            this.responseBytes = Counter.builder("proxy.response.bytes")
+                .description("Response body bytes returned to clients")
+                .baseUnit("bytes")
+                .tag("host", name)
+                .register(ProxyMetrics.this.meterRegistry);
+        }
+
+        private Timer getTimer(AtomicReferenceArray<Timer> timers, String timerName, String description, int statusClass) {
+            Timer timer = timers.get(statusClass);
+            if (timer == null) {
+                timer = Timer.builder(timerName)
+                    .description(description)
+                    .tags("host", this.name, "status", STATUS_CLASSES[statusClass])
+                    .publishPercentiles(ProxyMetrics.this.percentiles)
+                    .publishPercentileHistogram(ProxyMetrics.this.percentileHistogram)
+                    .register(ProxyMetrics.this.meterRegistry);
+                timers.set(statusClass, timer);
+            }
+
+            return timer;
+        }
+
+    }
+
+    /**
+     * The measurements of a single exchange.  Response updates arrive serially from the exchange's signals; request body
+     * updates may arrive concurrently with them.  The {@link #none()} exchange has no host and ignores all updates.
+     */
+    static final class Exchange {
+
+        private static final Exchange NONE = new Exchange(null, null);
+
+        private final ProxyMetrics metrics;
+
+        private final Host host;
+
+        private final long start = System.nanoTime();
+
+        private long firstByte;
+
+        private int status;
+
+        private boolean responded;
+
+        private boolean completed;
+
+        private Exchange(ProxyMetrics metrics, Host host) {
+            this.metrics = metrics;
+            this.host = host;
+        }
+
+        /**
+         * Records a chunk of the request body sent upstream.
+         */
+        void requestBody(DataBuffer buffer) {
+            if (this.host == null) {
+                return;
+            }
+
+            this.host.requestBytes.increment(buffer.readableByteCount());
+        }
+
+        /**
+         * Records the status of the response sent to the client.
+         */
+        void response(HttpStatus status) {
+            if (this.host == null) {
+                return;
+            }
+
+            this.status = status.value();
+            this.responded = true;
+        }
+
+        /**
+         * Records a chunk of the response body.
+         */
+        void responseBody(DataBuffer buffer) {
+            if (this.host == null) {
+                return;
+            }
+
+            if (this.firstByte == 0) {
+                this.firstByte = System.nanoTime();
+            }
+            this.host.responseBytes.increment(buffer.readableByteCount());
+        }
+
+        /**
+         * Records the failure of the exchange and completes it.
+         */
+        void failed() {
+            if (this.host == null) {
+                return;
+            }
+
+            this.status = HttpStatus.INTERNAL_SERVER_ERROR.value();
+            complete();
+        }
+
+        /**
+         * Completes the exchange if it is cancelled before a response is available.
+         */
+        void cancelled() {
+            if (this.host != null && !this.responded) {
+                complete();
+            }
+        }
+
+        /**
+         * Records the exchange's latencies.  Only the first call has any effect.
+         */
+        void complete() {
+            if (this.host == null || this.completed) {
+                return;
+            }
+            this.completed = true;
+
+            long end = System.nanoTime();
+            int statusClass = getStatusClass(this.status);
+
+            this.host.getTimer(this.host.firstByte, "proxy.first.byte", "Time from receiving a request to sending the first response body byte",
+                statusClass).record((this.firstByte == 0 ? end : this.firstByte) - this.start, TimeUnit.NANOSECONDS);
+            this.host.getTimer(this.host.duration, "proxy.requests", "Time from receiving a request to sending the last response body byte",
+                statusClass).record(end - this.start, TimeUnit.NANOSECONDS);
+
+            this.metrics.active.decrementAndGet();
+        }
+
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-client and per-route request rate limits.
+ * <p>
+ * Each key has a token bucket, implemented as the virtual scheduling form of the generic cell rate algorithm: the
+ * bucket is a single {@link AtomicLong} holding the theoretical arrival time of the next request, updated with a
+ * compare-and-set loop.  Buckets are held in a size-bounded Caffeine cache, whose reads are lock-free and whose
+ * access bookkeeping is striped, and are discarded once idle.
+ */
+@Component
+final class RateLimiter {
+
+    private final long origin = System.nanoTime();
+
+    private final Limit client;
+
+    private final Limit route;
+
+    private final int trustedHops;
+
+    RateLimiter(MeterRegistry meterRegistry,
+                @Value("${RATE_LIMIT_CLIENT_RPS:0}") double clientRate,
+                @Value("${RATE_LIMIT_CLIENT_BURST:0}") int clientBurst,
+                @Value("${RATE_LIMIT_CLIENT_TRUSTED_HOPS:1}") int trustedHops,
+                @Value("${RATE_LIMIT_ROUTE_RPS:0}") double routeRate,
+                @Value("${RATE_LIMIT_ROUTE_BURST:0}") int routeBurst,
+                @Value("${RATE_LIMIT_MAX_KEYS:100000}") long maxKeys,
+                @Value("${RATE_LIMIT_IDLE_TIMEOUT:60000}") long idleTimeout) {
+
+        this.client = clientRate > 0 ? new Limit(meterRegistry, "client", clientRate, clientBurst, maxKeys, idleTimeout) : null;
+        this.route = routeRate > 0 ? new Limit(meterRegistry, "route", routeRate, routeBurst, maxKeys, idleTimeout) : null;
+        this.trustedHops = Math.max(1, trustedHops);
+    }
+
+    /**
+     * Returns whether per-client limits are enforced, and the client address is therefore required.
+     */
+    boolean isClientLimited() {
+        return this.client != null;
+    }
+
+    /**
+     * Takes a token for a request from the client's and the route's buckets.  A request is only charged if both allow
+     * it: a token taken from the client's bucket is returned if the route's bucket rejects the request.
+     *
+     * @param clientAddress the client's address, ignored unless {@link #isClientLimited()}
+     * @param forwardedHost the host the request is forwarded to
+     * @return {@code 0} if the request is allowed, otherwise the number of nanoseconds until it would be
+     */
+    long acquire(String clientAddress, String forwardedHost) {
+        return acquire(clientAddress, forwardedHost, System.nanoTime() - this.origin);
+    }
+
+    long acquire(String clientAddress, String forwardedHost, long now) {
+        if (this.client != null) {
+            long wait = this.client.acquire(clientAddress, now);
+            if (wait > 0) {
+                return wait;
+            }
+        }
+
+        if (this.route != null) {
+            long wait = this.route.acquire(forwardedHost, now);
+            if (wait > 0 && this.client != null) {
+                this.client.release(clientAddress);
+            }
+            return wait;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns the client address of an {@code X-Forwarded-For} header: the entry appended by the outermost trusted
+     * proxy, {@code RATE_LIMIT_CLIENT_TRUSTED_HOPS} entries from the right.  Entries to its left are supplied by the
+     * client and are ignored.  If the header has fewer entries, the first is used.
+     */
+    String getClientAddress(String forwardedFor) {
+        int end = forwardedFor.length();
+        for (int hop = 1; hop < this.trustedHops; hop++) {
+            int separator = forwardedFor.lastIndexOf(',', end - 1);
+            if (separator < 0) {
+                break;
+            }
+            end = separator;
+        }
+
+        int start = end > 0 ? forwardedFor.lastIndexOf(',', end - 1) + 1 : 0;
+        return forwardedFor.substring(start, end).trim();
+    }
+
+    private static final class Limit {
+
+        private final Cache<String, AtomicLong> buckets;
+
+        private final long interval;
+
+        private final long capacity;
+
+        private final Counter rejections;
+
+        private Limit(MeterRegistry meterRegistry, String scope, double rate, int burst, long maxKeys, long idleTimeout) {
+            this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+            this.capacity = this.interval * (burst > 0 ? burst : Math.max(1, (long) Math.ceil(rate)));
+            this.buckets = Caffeine.newBuilder()
+                .maximumSize(maxKeys)
+                .expireAfterAccess(Math.max(TimeUnit.MILLISECONDS.toNanos(idleTimeout), this.capacity), TimeUnit.NANOSECONDS)
+                .build();
+            this.rejections = Counter.builder("rate.limit.rejections")
+                .description("Requests rejected because a rate limit was exceeded")
+                .tag("scope", scope)
+                .register(meterRegistry);
+        }
+
+        private long acquire(String key, long now) {
+            AtomicLong bucket = this.buckets.getIfPresent(key);
+            if (bucket == null) {
+                bucket = this.buckets.get(key, k -> new AtomicLong(Long.MIN_VALUE));
+            }
+
+            for (;;) {
+                long theoreticalArrival = bucket.get();
+                long next = Math.max(theoreticalArrival, now) + this.interval;
+                long wait = next - now - this.capacity;
+
+                if (wait > 0) {
+                    this.rejections.increment();
+                    return wait;
+                }
+
+                if (bucket.compareAndSet(theoreticalArrival, next)) {
+                    return 0;
+                }
+            }
+        }
+
+        private void release(String key) {
+            AtomicLong bucket = this.buckets.getIfPresent(key);
+            if (bucket != null) {
+                bucket.addAndGet(-this.interval);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,689 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import static org.springframework.http.HttpHeaders.AGE;
+import static org.springframework.http.HttpHeaders.AUTHORIZATION;
+import static org.springframework.http.HttpHeaders.CACHE_CONTROL;
+import static org.springframework.http.HttpHeaders.CONTENT_LENGTH;
+import static org.springframework.http.HttpHeaders.ETAG;
+import static org.springframework.http.HttpHeaders.IF_MODIFIED_SINCE;
+import static org.springframework.http.HttpHeaders.IF_NONE_MATCH;
+import static org.springframework.http.HttpHeaders.LAST_MODIFIED;
+import static org.springframework.http.HttpHeaders.PRAGMA;
+import static org.springframework.http.HttpHeaders.RANGE;
+import static org.springframework.http.HttpHeaders.SET_COOKIE;
+import static org.springframework.http.HttpHeaders.VARY;
+
+/**
+ * A shared, in-process HTTP cache for {@code GET} and {@code HEAD} requests.
+ * <p>
+ * Responses are stored if they carry explicit freshness ({@code Cache-Control: max-age/s-maxage} or {@code Expires})
+ * or a validator ({@code ETag} or {@code Last-Modified}).  Stale entries are revalidated upstream with
+ * {@code If-None-Match}/{@code If-Modified-Since}, and client conditional requests are answered with {@code 304}.
+ * Bodies are held in read-only off-heap buffers that are served as zero-copy slices.  The cache is bounded by total
+ * body size and evicts with W-TinyLFU.  Concurrent misses for the same key share a single upstream request; the shared
+ * request is abandoned after the coalescing timeout, even if its body is never read, so that later misses go upstream.
+ */
+@Component
+final class ResponseCache {
+
+    private static final DataBufferFactory BUFFER_FACTORY = new DefaultDataBufferFactory();
+
+    private static final HttpHeaders NO_HEADERS = HttpHeaders.readOnlyHttpHeaders(new HttpHeaders());
+
+    private static final int[] STORABLE_STATUSES = {200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501};
+
+    private static final int MAX_VARIANTS = 8;
+
+    private static final int ENTRY_OVERHEAD = 512;
+
+    private final Cache<String, Variants> cache;
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final long maxEntrySize;
+
+    private final Duration coalescingTimeout;
+
+    private final Counter hits;
+
+    private final Counter misses;
+
+    private final Counter revalidations;
+
+    private final Counter coalesced;
+
+    ResponseCache(MeterRegistry meterRegistry,
+                  @Value("${RESPONSE_CACHE_MAX_SIZE:0}") long maxSize,
+                  @Value("${RESPONSE_CACHE_MAX_ENTRY_SIZE:1048576}") long maxEntrySize,
+                  @Value("${RESPONSE_CACHE_COALESCING_TIMEOUT:10000}") long coalescingTimeout) {
+
+        this.cache = maxSize > 0 ? Caffeine.newBuilder()
+            .maximumWeight(maxSize)
+            .weigher((String url, Variants variants) -> variants.weight)
+            .build() : null;
+        this.maxEntrySize = Math.min(maxEntrySize, Integer.MAX_VALUE - 8);
+        this.coalescingTimeout = Duration.ofMillis(coalescingTimeout);
+
+        this.hits = result(meterRegistry, "hit");
+        this.misses = result(meterRegistry, "miss");
+        this.revalidations = result(meterRegistry, "revalidated");
+        this.coalesced = result(meterRegistry, "coalesced");
+
+        if (this.cache != null) {
+            Gauge.builder("response.cache.entries", this.cache, Cache::estimatedSize)
+                .description("URLs with cached responses")
+                .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Returns whether a request may be answered by the cache.
+     */
+    boolean isCacheable(HttpMethod method, HttpHeaders requestHeaders) {
+        return this.cache != null
+            && (method == HttpMethod.GET || method == HttpMethod.HEAD)
+            && !requestHeaders.containsKey(AUTHORIZATION)
+            && !requestHeaders.containsKey(RANGE)
+            && !Directives.parse(requestHeaders.get(CACHE_CONTROL)).noStore;
+    }
+
+    /**
+     * Answers a cacheable request from the cache, revalidating or fetching upstream as required.
+     *
+     * @param upstream performs the upstream request with the given additional request headers
+     */
+    Mono<ResponseEntity<Flux<DataBuffer>>> exchange(HttpMethod method, String url, HttpHeaders requestHeaders,
+                                                     Function<HttpHeaders, Mono<ResponseEntity<Flux<DataBuffer>>>> upstream) {
+
+        long now = System.currentTimeMillis();
+        Variants variants = this.cache.getIfPresent(url);
+        CachedResponse cached = variants == null ? null : variants.select(requestHeaders);
+
+        if (cached != null && cached.isFresh(now) && !requiresRevalidation(requestHeaders)) {
+            this.hits.increment();
+            return Mono.just(serve(cached, method, requestHeaders, now));
+        }
+
+        if (method != HttpMethod.GET) {
+            this.misses.increment();
+            return upstream.apply(NO_HEADERS);
+        }
+
+        String key = variants == null ? url : variants.key(url, requestHeaders);
+        Flight flight = new Flight();
+        Flight leader = this.flights.putIfAbsent(key, flight);
+
+        if (leader != null) {
+            this.coalesced.increment();
+            return leader.processor
+                .timeout(this.coalescingTimeout, Mono.empty())
+                .filter(response -> response.matches(requestHeaders))
+                .map(response -> serve(response, method, requestHeaders, System.currentTimeMillis()))
+                .switchIfEmpty(Mono.defer(() -> upstream.apply(NO_HEADERS)));
+        }
+
+        flight.deadline = Schedulers.parallel().schedule(() -> complete(key, flight, null), this.coalescingTimeout.toNanos(), TimeUnit.NANOSECONDS);
+
+        return upstream.apply(getConditionalHeaders(cached))
+            .map(response -> onResponse(key, flight, url, method, requestHeaders, cached, response))
+            .doOnError(error -> complete(key, flight, null))
+            .doOnCancel(() -> complete(key, flight, null));
+    }
+
+    private ResponseEntity<Flux<DataBuffer>> onResponse(String key, Flight flight, String url, HttpMethod method, HttpHeaders requestHeaders,
+                                                        CachedResponse cached, ResponseEntity<Flux<DataBuffer>> response) {
+
+        long now = System.currentTimeMillis();
+        HttpStatus status = response.getStatusCode();
+        HttpHeaders headers = response.getHeaders();
+
+        if (cached != null && status == HttpStatus.NOT_MODIFIED) {
+            response.getBody().subscribe(DataBufferUtils::release);
+
+            CachedResponse revalidated = cached.revalidate(headers, now);
+            if (revalidated != null) {
+                store(url, revalidated);
+            } else {
+                invalidate(url, cached);
+            }
+
+            this.revalidations.increment();
+            complete(key, flight, revalidated);
+            return serve(revalidated != null ? revalidated : cached, method, requestHeaders, now);
+        }
+
+        this.misses.increment();
+
+        long freshnessLifetime = getFreshnessLifetime(status, headers, now);
+        long contentLength = headers.getContentLength();
+        if (freshnessLifetime < 0 || contentLength > this.maxEntrySize) {
+            if (cached != null) {
+                invalidate(url, cached);
+            }
+            complete(key, flight, null);
+            return response;
+        }
+
+        Accumulator accumulator = new Accumulator(contentLength, this.maxEntrySize);
+        Flux<DataBuffer> body = response.getBody()
+            .doOnNext(accumulator::append)
+            .doOnComplete(() -> {
+                CachedResponse stored = null;
+                if (!accumulator.overflowed) {
+                    stored = new CachedResponse(status, headers, accumulator.toByteBuffer(), requestHeaders, now, freshnessLifetime);
+                    store(url, stored);
+                }
+                complete(key, flight, stored);
+            })
+            .doOnError(error -> complete(key, flight, null))
+            .doOnCancel(() -> complete(key, flight, null));
+
+        return new ResponseEntity<>(body, headers, status);
+    }
+
+    private void complete(String key, Flight flight, CachedResponse response) {
+        if (flight.completed.compareAndSet(false, true)) {
+            this.flights.remove(key, flight);
+
+            Disposable deadline = flight.deadline;
+            if (deadline != null) {
+                deadline.dispose();
+            }
+
+            if (response != null) {
+                flight.processor.onNext(response);
+            } else {
+                flight.processor.onComplete();
+            }
+        }
+    }
+
+    private void store(String url, CachedResponse response) {
+        this.cache.asMap().compute(url, (k, variants) -> variants == null ? new Variants(response) : variants.with(response));
+    }
+
+    private void invalidate(String url, CachedResponse response) {
+        this.cache.asMap().computeIfPresent(url, (k, variants) -> variants.without(response));
+    }
+
+    private static ResponseEntity<Flux<DataBuffer>> serve(CachedResponse cached, HttpMethod method, HttpHeaders requestHeaders, long now) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.putAll(cached.headers);
+        headers.set(AGE, Long.toString(cached.getAge(now) / 1000));
+
+        if (cached.matchesIfNoneMatch(requestHeaders.get(IF_NONE_MATCH))) {
+            headers.remove(CONTENT_LENGTH);
+            return new ResponseEntity<>(Flux.empty(), headers, HttpStatus.NOT_MODIFIED);
+        }
+
+        Flux<DataBuffer> body = method == HttpMethod.HEAD ? Flux.empty() : Flux.just(BUFFER_FACTORY.wrap(cached.body.duplicate()));
+        return new ResponseEntity<>(body, headers, cached.status);
+    }
+
+    private static boolean requiresRevalidation(HttpHeaders requestHeaders) {
+        Directives directives = Directives.parse(requestHeaders.get(CACHE_CONTROL));
+        if (directives.noCache || directives.maxAge == 0) {
+            return true;
+        }
+
+        List<String> pragma = requestHeaders.get(PRAGMA);
+        return pragma != null && pragma.stream().anyMatch(value -> value.toLowerCase(Locale.ENGLISH).contains("no-cache"));
+    }
+
+    private static HttpHeaders getConditionalHeaders(CachedResponse cached) {
+        if (cached == null || (cached.etag == null && cached.lastModified == null)) {
+            return NO_HEADERS;
+        }
+
+        HttpHeaders headers = new HttpHeaders();
+        if (cached.etag != null) {
+            headers.set(IF_NONE_MATCH, cached.etag);
+        }
+        if (cached.lastModified != null) {
+            headers.set(IF_MODIFIED_SINCE, cached.lastModified);
+        }
+        return headers;
+    }
+
+    /**
+     * Returns how long a response may be served without revalidation, or {@code -1} if it may not be stored.
+     */
+    private static long getFreshnessLifetime(HttpStatus status, HttpHeaders headers, long now) {
+        if (Arrays.stream(STORABLE_STATUSES).noneMatch(storable -> storable == status.value())) {
+            return -1;
+        }
+
+        Directives directives = Directives.parse(headers.get(CACHE_CONTROL));
+        if (directives.noStore || directives.isPrivate || headers.containsKey(SET_COOKIE)) {
+            return -1;
+        }
+
+        List<String> vary = headers.get(VARY);
+        if (vary != null && vary.stream().anyMatch(value -> value.trim().equals("*"))) {
+            return -1;
+        }
+
+        boolean validated = headers.containsKey(ETAG) || headers.containsKey(LAST_MODIFIED);
+        if (directives.noCache) {
+            return validated ? 0 : -1;
+        }
+        if (directives.sMaxAge >= 0) {
+            return directives.sMaxAge * 1000;
+        }
+        if (directives.maxAge >= 0) {
+            return directives.maxAge * 1000;
+        }
+
+        long expires = getDate(headers, HttpHeaders.EXPIRES);
+        if (expires >= 0) {
+            long date = getDate(headers, HttpHeaders.DATE);
+            return Math.max(0, expires - (date >= 0 ? date : now));
+        }
+
+        return validated ? 0 : -1;
+    }
+
+    private static long getDate(HttpHeaders headers, String name) {
+        try {
+            return headers.getFirstDate(name);
+        } catch (IllegalArgumentException ex) {
+            return name.equals(HttpHeaders.EXPIRES) ? 0 : -1;
+        }
+    }
+
+    private static Counter result(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("response.cache.requests")
+            .description("Cacheable requests by cache outcome")
+            .tag("result", result)
+            .register(meterRegistry);
+    }
+
+    private static final class Flight {
+
+        private final MonoProcessor<CachedResponse> processor = MonoProcessor.create();
+
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        private volatile Disposable deadline;
+
+    }
+
+    /**
+     * The stored variants of a URL, selected by the request headers named in their {@code Vary} header.
+     */
+    private static final class Variants {
+
+        private final CachedResponse[] responses;
+
+        private final int weight;
+
+        private Variants(CachedResponse... responses) {
+            this.responses = responses;
+
+            int weight = 0;
+            for (CachedResponse response : responses) {
+                weight += response.body.capacity() + ENTRY_OVERHEAD;
+            }
+            this.weight = weight;
+        }
+
+        private CachedResponse select(HttpHeaders requestHeaders) {
+            for (CachedResponse response : this.responses) {
+                if (response.matches(requestHeaders)) {
+                    return response;
+                }
+            }
+            return null;
+        }
+
+        private String key(String url, HttpHeaders requestHeaders) {
+            StringBuilder key = new StringBuilder(url);
+            for (String name : this.responses[0].varyNames) {
+                key.append('\n').append(CachedResponse.getVaryValue(requestHeaders, name));
+            }
+            return key.toString();
+        }
+
+        private Variants with(CachedResponse response) {
+            List<CachedResponse> responses = new ArrayList<>(MAX_VARIANTS);
+            responses.add(response);
+            for (CachedResponse existing : this.responses) {
+                if (responses.size() < MAX_VARIANTS && !existing.isSameVariant(response)) {
+                    responses.add(existing);
+                }
+            }
+            return new Variants(responses.toArray(new CachedResponse[0]));
+        }
+
+        private Variants without(CachedResponse response) {
+            List<CachedResponse> responses = new ArrayList<>(this.responses.length);
+            for (CachedResponse existing : this.responses) {
+                if (existing != response) {
+                    responses.add(existing);
+                }
+            }
+            return responses.isEmpty() ? null : new Variants(responses.toArray(new CachedResponse[0]));
+        }
+
+    }
+
+    private static final class CachedResponse {
+
+        private final HttpStatus status;
+
+        private final HttpHeaders headers;
+
+        private final ByteBuffer body;
+
+        private final String etag;
+
+        private final String lastModified;
+
+        private final String[] varyNames;
+
+        private final String[] varyValues;
+
+        private final long responseTime;
+
+        private final long initialAge;
+
+        private final long freshnessLifetime;
+
+        private CachedResponse(HttpStatus status, HttpHeaders responseHeaders, ByteBuffer body, HttpHeaders requestHeaders, long responseTime,
+                               long freshnessLifetime) {
+
+            HttpHeaders headers = new HttpHeaders();
+            responseHeaders.forEach((name, values) -> {
+                if (!ForwardedHeaders.isHopByHop(name)) {
+                    headers.put(name, values);
+                }
+            });
+            headers.setContentLength(body.remaining());
+
+            this.status = status;
+            this.headers = HttpHeaders.readOnlyHttpHeaders(headers);
+            this.body = body;
+            this.etag = headers.getFirst(ETAG);
+            this.lastModified = headers.getFirst(LAST_MODIFIED);
+            this.responseTime = responseTime;
+            this.initialAge = parseAge(headers.getFirst(AGE));
+            this.freshnessLifetime = freshnessLifetime;
+
+            List<String> varyNames = new ArrayList<>();
+            List<String> vary = headers.get(VARY);
+            if (vary != null) {
+                for (String value : vary) {
+                    for (String name : value.split(",")) {
+                        if (!name.trim().isEmpty()) {
+                            varyNames.add(name.trim().toLowerCase(Locale.ENGLISH));
+                        }
+                    }
+                }
+            }
+            this.varyNames = varyNames.toArray(new String[0]);
+            this.varyValues = new String[this.varyNames.length];
+            for (int i = 0; i < this.varyNames.length; i++) {
+                this.varyValues[i] = getVaryValue(requestHeaders, this.varyNames[i]);
+            }
+        }
+
+        private CachedResponse(CachedResponse cached, HttpHeaders headers, long responseTime, long freshnessLifetime) {
+            this.status = cached.status;
+            this.headers = HttpHeaders.readOnlyHttpHeaders(headers);
+            this.body = cached.body;
+            this.etag = headers.getFirst(ETAG);
+            this.lastModified = headers.getFirst(LAST_MODIFIED);
+            this.varyNames = cached.varyNames;
+            this.varyValues = cached.varyValues;
+            this.responseTime = responseTime;
+            this.initialAge = parseAge(headers.getFirst(AGE));
+            this.freshnessLifetime = freshnessLifetime;
+        }
+
+        private long getAge(long now) {
+            return Math.max(0, now - this.responseTime) + this.initialAge;
+        }
+
+        private boolean isFresh(long now) {
+            return getAge(now) < this.freshnessLifetime;
+        }
+
+        private boolean matches(HttpHeaders requestHeaders) {
+            for (int i = 0; i < this.varyNames.length; i++) {
+                if (!this.varyValues[i].equals(getVaryValue(requestHeaders, this.varyNames[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isSameVariant(CachedResponse other) {
+            return Arrays.equals(this.varyNames, other.varyNames) && Arrays.equals(this.varyValues, other.varyValues);
+        }
+
+        private boolean matchesIfNoneMatch(List<String> ifNoneMatch) {
+            if (this.etag == null || ifNoneMatch == null) {
+                return false;
+            }
+
+            String etag = weak(this.etag);
+            for (String value : ifNoneMatch) {
+                for (String candidate : value.split(",")) {
+                    candidate = candidate.trim();
+                    if (candidate.equals("*") || weak(candidate).equals(etag)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns this response updated with the headers of a {@code 304} response, or {@code null} if it may no
+         * longer be stored.
+         */
+        private CachedResponse revalidate(HttpHeaders notModifiedHeaders, long now) {
+            HttpHeaders headers = new HttpHeaders();
+            headers.putAll(this.headers);
+            notModifiedHeaders.forEach((name, values) -> {
+                if (!name.equalsIgnoreCase(CONTENT_LENGTH) && !ForwardedHeaders.isHopByHop(name)) {
+                    headers.put(name, values);
+                }
+            });
+
+            long freshnessLifetime = getFreshnessLifetime(this.status, headers, now);
+            return freshnessLifetime < 0 ? null : new CachedResponse(this, headers, now, freshnessLifetime);
+        }
+
+        private static String getVaryValue(HttpHeaders requestHeaders, String name) {
+            List<String> values = requestHeaders.get(name);
+            return values == null ? "" : String.join(",", values);
+        }
+
+        private static String weak(String etag) {
+            return etag.startsWith("W/") ? etag.substring(2) : etag;
+        }
+
+        private static long parseAge(String age) {
+            try {
+                return age == null ? 0 : Math.max(0, Long.parseLong(age.trim()) * 1000);
+            } catch (NumberFormatException ex) {
+                return 0;
+            }
+        }
+
+    }
+
+    /**
+     * The {@code Cache-Control} directives relevant to a shared cache.
+     */
+    private static final class Directives {
+
+        private boolean noStore;
+
+        private boolean noCache;
+
+        private boolean isPrivate;
+
+        private long maxAge = -1;
+
+        private long sMaxAge = -1;
+
+        private static Directives parse(List<String> values) {
+            Directives directives = new Directives();
+            if (values == null) {
+                return directives;
+            }
+
+            for (String value : values) {
+                for (String directive : value.split(",")) {
+                    String[] parts = directive.trim().split("=", 2);
+                    String name = parts[0].trim().toLowerCase(Locale.ENGLISH);
+                    String argument = parts.length > 1 ? parts[1].trim().replace("\"", "") : null;
+
+                    switch (name) {
+                        case "no-store":
+                            directives.noStore = true;
+                            break;
+                        case "no-cache":
+                            directives.noCache = true;
+                            break;
+                        case "private":
+                            directives.isPrivate = true;
+                            break;
+                        case "max-age":
+                            directives.maxAge = parseSeconds(argument);
+                            break;
+                        case "s-maxage":
+                            directives.sMaxAge = parseSeconds(argument);
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }
+
+            return directives;
+        }
+
+        private static long parseSeconds(String argument) {
+            try {
+                return argument == null ? -1 : Math.max(0, Long.parseLong(argument));
+            } catch (NumberFormatException ex) {
+                return 0;
+            }
+        }
+
+    }
+
+    /**
+     * Collects a response body directly into a direct buffer, without an intermediate heap copy.  The buffer is sized
+     * from the {@code Content-Length} if it is known; otherwise it grows as required and is trimmed once complete.
+     */
+    private static final class Accumulator {
+
+        private static final int INITIAL_CAPACITY = 8192;
+
+        private final long limit;
+
+        private ByteBuffer buffer;
+
+        private boolean overflowed;
+
+        private Accumulator(long contentLength, long limit) {
+            this.limit = limit;
+            this.buffer = ByteBuffer.allocateDirect((int) Math.min(contentLength >= 0 ? contentLength : INITIAL_CAPACITY, limit));
+        }
+
+        private void append(DataBuffer dataBuffer) {
+            if (this.overflowed) {
+                return;
+            }
+
+            int length = dataBuffer.readableByteCount();
+            if (this.buffer.position() + (long) length > this.limit) {
+                this.overflowed = true;
+                this.buffer = null;
+                return;
+            }
+
+            if (length > this.buffer.remaining()) {
+                grow(this.buffer.position() + length);
+            }
+
+            this.buffer.put(dataBuffer.asByteBuffer());
+        }
+
+        private void grow(int minimumCapacity) {
+            ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(this.limit, Math.max(minimumCapacity, this.buffer.capacity() * 2L)));
+            this.buffer.flip();
+            grown.put(this.buffer);
+            this.buffer = grown;
+        }
+
+        private ByteBuffer toByteBuffer() {
+            ByteBuffer buffer = this.buffer;
+            this.buffer = null;
+            buffer.flip();
+
+            if (buffer.limit() < buffer.capacity()) {
+                ByteBuffer trimmed = ByteBuffer.allocateDirect(buffer.limit());
+                trimmed.put(buffer).flip();
+                buffer = trimmed;
+            }
+
+            return buffer.asReadOnlyBuffer();
+        }
+
+    }
+
+}
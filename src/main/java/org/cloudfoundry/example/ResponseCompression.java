@@ -0,0 +1,432 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static org.springframework.http.HttpHeaders.ACCEPT_ENCODING;
+import static org.springframework.http.HttpHeaders.CACHE_CONTROL;
+import static org.springframework.http.HttpHeaders.CONTENT_ENCODING;
+import static org.springframework.http.HttpHeaders.CONTENT_LENGTH;
+import static org.springframework.http.HttpHeaders.CONTENT_RANGE;
+import static org.springframework.http.HttpHeaders.ETAG;
+import static org.springframework.http.HttpHeaders.VARY;
+
+/**
+ * Compresses response bodies with {@code gzip} or {@code deflate} for clients that accept them.
+ * <p>
+ * Bodies are compressed as they stream: each buffer from upstream is compressed and flushed as it arrives, so the whole
+ * body is never held and a streaming response is not delayed.  Responses that are already encoded, have a content type
+ * that is not known to compress well, are declared smaller than the minimum size, or forbid transformation are passed
+ * through unchanged.  {@link Deflater}s, and the native memory behind them, are pooled and reused.
+ */
+@Component
+final class ResponseCompression {
+
+    static final String GZIP = "gzip";
+
+    static final String DEFLATE = "deflate";
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final DataBufferFactory BUFFER_FACTORY = new DefaultDataBufferFactory();
+
+    private final boolean enabled;
+
+    private final long minSize;
+
+    private final Set<String> mimeTypes;
+
+    private final DeflaterPool gzipDeflaters;
+
+    private final DeflaterPool deflateDeflaters;
+
+    private final Counter input;
+
+    private final Counter output;
+
+    private final Timer time;
+
+    ResponseCompression(MeterRegistry meterRegistry,
+                        @Value("${COMPRESSION_ENABLED:false}") boolean enabled,
+                        @Value("${COMPRESSION_MIN_SIZE:1024}") long minSize,
+                        @Value("${COMPRESSION_MIME_TYPES:text/html,text/xml,text/plain,text/css,text/javascript,application/javascript,application/json,application/xml}") String mimeTypes,
+                        @Value("${COMPRESSION_LEVEL:6}") int level) {
+
+        this.enabled = enabled;
+        this.minSize = minSize;
+        this.mimeTypes = new HashSet<>();
+        for (String mimeType : mimeTypes.trim().split("[,\\s]+")) {
+            if (!mimeType.isEmpty()) {
+                this.mimeTypes.add(mimeType.toLowerCase(Locale.ROOT));
+            }
+        }
+
+        int maxPooled = Runtime.getRuntime().availableProcessors() * 2;
+        this.gzipDeflaters = new DeflaterPool(level, true, maxPooled);
+        this.deflateDeflaters = new DeflaterPool(level, false, maxPooled);
+
+        this.input = Counter.builder("compression.input")
+            .description("Response body bytes compressed")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        this.output = Counter.builder("compression.output")
+            .description("Compressed response body bytes produced")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        this.time = Timer.builder("compression.time")
+            .description("Time spent compressing each response body")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Returns a response with its body compressed if the request accepts a supported encoding and the response is
+     * worth compressing, and the response itself otherwise.
+     */
+    ResponseEntity<Flux<DataBuffer>> compress(HttpMethod method, HttpHeaders requestHeaders, ResponseEntity<Flux<DataBuffer>> response) {
+        if (!this.enabled || method == HttpMethod.HEAD || !isCompressible(response)) {
+            return response;
+        }
+
+        String encoding = negotiate(requestHeaders.get(ACCEPT_ENCODING));
+        if (encoding == null) {
+            return response;
+        }
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.putAll(response.getHeaders());
+        headers.remove(CONTENT_LENGTH);
+        headers.set(CONTENT_ENCODING, encoding);
+        addVary(headers);
+
+        String etag = headers.getETag();
+        if (etag != null && etag.startsWith("\"")) {
+            headers.set(ETAG, "W/" + etag);
+        }
+
+        return new ResponseEntity<>(compress(response.getBody(), encoding), headers, response.getStatusCode());
+    }
+
+    private Flux<DataBuffer> compress(Flux<DataBuffer> body, String encoding) {
+        return Flux.defer(() -> {
+            Compressor compressor = GZIP.equals(encoding) ?
+                new Compressor(this.gzipDeflaters, true) :
+                new Compressor(this.deflateDeflaters, false);
+
+            return body
+                .map(compressor::compress)
+                .concatWith(Mono.fromSupplier(compressor::finish))
+                .doFinally(signal -> compressor.release());
+        });
+    }
+
+    private boolean isCompressible(ResponseEntity<Flux<DataBuffer>> response) {
+        HttpStatus status = response.getStatusCode();
+        if (status.is1xxInformational() || status == HttpStatus.NO_CONTENT || status == HttpStatus.PARTIAL_CONTENT ||
+            status == HttpStatus.NOT_MODIFIED) {
+            return false;
+        }
+
+        HttpHeaders headers = response.getHeaders();
+        String contentEncoding = headers.getFirst(CONTENT_ENCODING);
+        if ((contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity")) || headers.containsKey(CONTENT_RANGE)) {
+            return false;
+        }
+
+        long contentLength = headers.getContentLength();
+        if (contentLength >= 0 && contentLength < this.minSize) {
+            return false;
+        }
+
+        List<String> cacheControl = headers.get(CACHE_CONTROL);
+        if (cacheControl != null && cacheControl.stream().anyMatch(value -> value.toLowerCase(Locale.ROOT).contains("no-transform"))) {
+            return false;
+        }
+
+        try {
+            MediaType contentType = headers.getContentType();
+            if (contentType == null) {
+                return false;
+            }
+
+            String subtype = contentType.getSubtype().toLowerCase(Locale.ROOT);
+            return this.mimeTypes.contains(contentType.getType().toLowerCase(Locale.ROOT) + "/" + subtype) ||
+                subtype.endsWith("+json") || subtype.endsWith("+xml");
+        } catch (InvalidMediaTypeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the supported encoding a client prefers, or {@code null} if it accepts neither.
+     */
+    static String negotiate(List<String> acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+
+        double gzip = -1;
+        double deflate = -1;
+        double wildcard = -1;
+
+        for (String value : acceptEncoding) {
+            for (String element : value.split(",")) {
+                String[] parameters = element.split(";");
+                String coding = parameters[0].trim().toLowerCase(Locale.ROOT);
+                double quality = getQuality(parameters);
+
+                if (GZIP.equals(coding) || "x-gzip".equals(coding)) {
+                    gzip = Math.max(gzip, quality);
+                } else if (DEFLATE.equals(coding)) {
+                    deflate = Math.max(deflate, quality);
+                } else if ("*".equals(coding)) {
+                    wildcard = quality;
+                }
+            }
+        }
+
+        gzip = gzip < 0 ? wildcard : gzip;
+        deflate = deflate < 0 ? wildcard : deflate;
+
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    private static double getQuality(String[] parameters) {
+        for (int i = 1; i < parameters.length; i++) {
+            String parameter = parameters[i].trim();
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+
+        return 1;
+    }
+
+    private static void addVary(HttpHeaders headers) {
+        List<String> vary = headers.get(VARY);
+        if (vary != null) {
+            for (String value : vary) {
+                for (String name : value.split(",")) {
+                    String trimmed = name.trim();
+                    if (trimmed.equals("*") || trimmed.equalsIgnoreCase(ACCEPT_ENCODING)) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        headers.add(VARY, ACCEPT_ENCODING);
+    }
+
+    private static final class DeflaterPool {
+
+        private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger size = new AtomicInteger();
+
+        private final int level;
+
+        private final boolean nowrap;
+
+        private final int maxSize;
+
+        private DeflaterPool(int level, boolean nowrap, int maxSize) {
+            this.level = level;
+            this.nowrap = nowrap;
+            this.maxSize = maxSize;
+        }
+
+        private Deflater acquire() {
+            Deflater deflater = this.deflaters.poll();
+            if (deflater == null) {
+                return new Deflater(this.level, this.nowrap);
+            }
+
+            this.size.decrementAndGet();
+            return deflater;
+        }
+
+        private void release(Deflater deflater) {
+            if (this.size.incrementAndGet() <= this.maxSize) {
+                deflater.reset();
+                this.deflaters.offer(deflater);
+            } else {
+                this.size.decrementAndGet();
+                deflater.end();
+            }
+        }
+
+    }
+
+    /**
+     * Compresses one body.  Methods are synchronized because a cancellation may release the deflater on another thread
+     * while a buffer is being compressed.
+     */
+    private final class Compressor {
+
+        private final DeflaterPool pool;
+
+        private final boolean gzip;
+
+        private final CRC32 crc = new CRC32();
+
+        private final byte[] scratch = new byte[BUFFER_SIZE];
+
+        private Deflater deflater;
+
+        private DataBufferFactory dataBufferFactory = BUFFER_FACTORY;
+
+        private byte[] input = new byte[0];
+
+        private boolean started;
+
+        private long nanos;
+
+        private long inputBytes;
+
+        private long outputBytes;
+
+        private Compressor(DeflaterPool pool, boolean gzip) {
+            this.pool = pool;
+            this.gzip = gzip;
+            this.deflater = pool.acquire();
+        }
+
+        private synchronized DataBuffer compress(DataBuffer buffer) {
+            try {
+                if (this.deflater == null) {
+                    throw new IllegalStateException("Compressor has been released");
+                }
+
+                long start = System.nanoTime();
+
+                int length = buffer.readableByteCount();
+                if (this.input.length < length) {
+                    this.input = new byte[length];
+                }
+                buffer.read(this.input, 0, length);
+                this.dataBufferFactory = buffer.factory();
+
+                if (this.gzip) {
+                    this.crc.update(this.input, 0, length);
+                }
+                this.inputBytes += length;
+                this.deflater.setInput(this.input, 0, length);
+
+                DataBuffer compressed = deflate(false);
+                this.nanos += System.nanoTime() - start;
+                return compressed;
+            } finally {
+                DataBufferUtils.release(buffer);
+            }
+        }
+
+        private synchronized DataBuffer finish() {
+            if (this.deflater == null) {
+                throw new IllegalStateException("Compressor has been released");
+            }
+
+            long start = System.nanoTime();
+
+            this.deflater.finish();
+            DataBuffer compressed = deflate(true);
+
+            if (this.gzip) {
+                writeIntLE(compressed, (int) this.crc.getValue());
+                writeIntLE(compressed, (int) this.inputBytes);
+                this.outputBytes += 8;
+            }
+
+            this.nanos += System.nanoTime() - start;
+
+            ResponseCompression.this.input.increment(this.inputBytes);
+            ResponseCompression.this.output.increment(this.outputBytes);
+            ResponseCompression.this.time.record(this.nanos, TimeUnit.NANOSECONDS);
+
+            return compressed;
+        }
+
+        private synchronized void release() {
+            if (this.deflater != null) {
+                this.pool.release(this.deflater);
+                this.deflater = null;
+            }
+        }
+
+        private DataBuffer deflate(boolean finish) {
+            DataBuffer compressed = this.dataBufferFactory.allocateBuffer(BUFFER_SIZE);
+
+            if (this.gzip && !this.started) {
+                compressed.write(GZIP_HEADER);
+                this.outputBytes += GZIP_HEADER.length;
+            }
+            this.started = true;
+
+            for (;;) {
+                int length = this.deflater.deflate(this.scratch, 0, this.scratch.length, finish ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                compressed.write(this.scratch, 0, length);
+                this.outputBytes += length;
+
+                if (finish ? this.deflater.finished() : length < this.scratch.length) {
+                    return compressed;
+                }
+            }
+        }
+
+        private void writeIntLE(DataBuffer buffer, int value) {
+            buffer.write(new byte[]{(byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24)});
+        }
+
+    }
+
+}
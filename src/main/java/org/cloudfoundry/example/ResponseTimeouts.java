@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Limits on the time an upstream takes to respond with headers, with optional overrides per forwarded host.
+ */
+@Component
+final class ResponseTimeouts {
+
+    private final Duration defaultTimeout;
+
+    private final Map<String, Duration> routeTimeouts;
+
+    ResponseTimeouts(@Value("${UPSTREAM_RESPONSE_TIMEOUT:0}") long defaultTimeout,
+                     @Value("${UPSTREAM_ROUTE_RESPONSE_TIMEOUTS:}") String routeTimeouts) {
+
+        this.defaultTimeout = toDuration(defaultTimeout);
+        this.routeTimeouts = parse(routeTimeouts);
+    }
+
+    /**
+     * Returns the response timeout for a forwarded host, or {@code null} if there is none.
+     */
+    Duration get(String forwardedHost) {
+        if (!this.routeTimeouts.isEmpty()) {
+            Duration timeout = this.routeTimeouts.get(forwardedHost.toLowerCase(Locale.ROOT));
+            if (timeout != null) {
+                return timeout.isZero() ? null : timeout;
+            }
+        }
+
+        return this.defaultTimeout;
+    }
+
+    private static Map<String, Duration> parse(String specification) {
+        Map<String, Duration> routeTimeouts = new HashMap<>();
+
+        if (specification != null) {
+            for (String entry : specification.trim().split("[,\\s]+")) {
+                if (entry.isEmpty()) {
+                    continue;
+                }
+
+                int separator = entry.lastIndexOf('=');
+                if (separator <= 0) {
+                    throw new IllegalArgumentException(String.format("Invalid route response timeout '%s'", entry));
+                }
+
+                try {
+                    long timeout = Long.parseLong(entry.substring(separator + 1));
+                    if (timeout < 0) {
+                        throw new IllegalArgumentException(String.format("Invalid route response timeout '%s'", entry));
+                    }
+
+                    routeTimeouts.put(entry.substring(0, separator).toLowerCase(Locale.ROOT), Duration.ofMillis(timeout));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(String.format("Invalid route response timeout '%s'", entry), e);
+                }
+            }
+        }
+
+        return routeTimeouts;
+    }
+
+    private static Duration toDuration(long timeout) {
+        return timeout > 0 ? Duration.ofMillis(timeout) : null;
+    }
+
+}
@@ -2,8 +2,6 @@ package org.cloudfoundry.example;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.context.annotation.Bean;
-import org.springframework.web.reactive.function.client.WebClient;
 
 @SpringBootApplication
 public class RouteServiceApplication {
@@ -12,9 +10,4 @@ public class RouteServiceApplication {
         SpringApplication.run(RouteServiceApplication.class, args);
     }
 
-    @Bean
-    WebClient webClient() {
-        return WebClient.create();
-    }
-
 }
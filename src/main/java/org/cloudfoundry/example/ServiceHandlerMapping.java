@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import org.springframework.core.Ordered;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.handler.AbstractHandlerMapping;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebHandler;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static org.cloudfoundry.example.Controller.FORWARDED_URL;
+import static org.cloudfoundry.example.Controller.PROXY_METADATA;
+import static org.cloudfoundry.example.Controller.PROXY_SIGNATURE;
+
+/**
+ * Routes requests carrying the route service headers to the {@link Controller}, and the forwarded leg of warm-up
+ * requests to the {@link Warmup}.  The routes are registered as plain {@link WebHandler}s ahead of annotation-based
+ * request mapping, so no handler methods are introspected at startup and the response is written without selecting a
+ * message writer.
+ */
+@Component
+final class ServiceHandlerMapping extends AbstractHandlerMapping {
+
+    private final Warmup warmup;
+
+    private final Mono<WebHandler> handler;
+
+    private final Mono<WebHandler> warmupHandler;
+
+    ServiceHandlerMapping(Controller controller, Warmup warmup) {
+        this.warmup = warmup;
+        this.handler = Mono.just(exchange -> write(controller.service(exchange.getRequest()), exchange.getResponse()));
+        this.warmupHandler = Mono.just(exchange -> warmup.respond(exchange.getResponse()));
+        setOrder(Ordered.HIGHEST_PRECEDENCE);
+    }
+
+    @Override
+    protected Mono<?> getHandlerInternal(ServerWebExchange exchange) {
+        HttpHeaders headers = exchange.getRequest().getHeaders();
+
+        if (headers.containsKey(FORWARDED_URL) && headers.containsKey(PROXY_METADATA) && headers.containsKey(PROXY_SIGNATURE)) {
+            return this.handler;
+        }
+
+        if (this.warmup.isWarmupTarget(exchange.getRequest())) {
+            return this.warmupHandler;
+        }
+
+        return Mono.empty();
+    }
+
+    private static Mono<Void> write(Mono<ResponseEntity<Flux<DataBuffer>>> response, ServerHttpResponse serverResponse) {
+        return response.flatMap(entity -> {
+            serverResponse.setStatusCode(entity.getStatusCode());
+            serverResponse.getHeaders().putAll(entity.getHeaders());
+            return serverResponse.writeWith(entity.getBody());
+        });
+    }
+
+}
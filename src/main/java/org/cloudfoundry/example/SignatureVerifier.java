@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies the {@code X-CF-Proxy-Signature} that the Gorouter attaches to requests it sends to a route service.
+ * <p>
+ * The signature is the JSON encoding of the forwarded URL and the time the request was made, encrypted with AES-GCM
+ * under a key derived from the route service secret shared with the Gorouter; {@code X-CF-Proxy-Metadata} carries the
+ * nonce.  A signature is valid if it decrypts, names the URL in {@code X-CF-Forwarded-Url}, and was made within the
+ * timeout.  Decrypted signatures are held in a bounded cache that expires them after the timeout, so a client that
+ * repeats a signature only pays for the comparison, and each thread reuses its own {@link Cipher}.
+ */
+@Component
+final class SignatureVerifier {
+
+    private static final int KEY_ITERATIONS = 100_000;
+
+    private static final int KEY_LENGTH = 16;
+
+    private static final int TAG_LENGTH = 128;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final SecretKeySpec key;
+
+    private final long timeout;
+
+    private final Cache<String, Signature> signatures;
+
+    private final Counter hits;
+
+    private final Counter verified;
+
+    private final Counter rejected;
+
+    SignatureVerifier(MeterRegistry meterRegistry,
+                      @Value("${ROUTE_SERVICE_SECRET:}") String secret,
+                      @Value("${ROUTE_SERVICE_SIGNATURE_TIMEOUT:60000}") long timeout,
+                      @Value("${SIGNATURE_CACHE_MAX_SIZE:10000}") long maxSize) {
+
+        this.key = secret.isEmpty() ? null : new SecretKeySpec(deriveKey(secret), "AES");
+        this.timeout = timeout;
+        this.signatures = Caffeine.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfterWrite(timeout, TimeUnit.MILLISECONDS)
+            .build();
+
+        this.hits = verificationCounter(meterRegistry, "hit");
+        this.verified = verificationCounter(meterRegistry, "verified");
+        this.rejected = verificationCounter(meterRegistry, "rejected");
+    }
+
+    /**
+     * Returns whether signatures are verified.
+     */
+    boolean isEnabled() {
+        return this.key != null;
+    }
+
+    /**
+     * Verifies a signature against a request's forwarded URL.  Always succeeds if verification is not enabled.
+     */
+    boolean verify(String signature, String metadata, String forwardedUrl) {
+        return verify(signature, metadata, forwardedUrl, System.currentTimeMillis());
+    }
+
+    boolean verify(String signature, String metadata, String forwardedUrl, long now) {
+        if (this.key == null) {
+            return true;
+        }
+
+        Signature decrypted = this.signatures.getIfPresent(signature);
+        if (decrypted != null) {
+            this.hits.increment();
+        } else {
+            decrypted = decrypt(signature, metadata);
+            if (decrypted == null) {
+                this.rejected.increment();
+                return false;
+            }
+
+            this.signatures.put(signature, decrypted);
+            this.verified.increment();
+        }
+
+        if (!decrypted.forwardedUrl.equals(forwardedUrl)) {
+            this.logger.debug("Signature is for {}, not {}", decrypted.forwardedUrl, forwardedUrl);
+            this.rejected.increment();
+            return false;
+        }
+
+        if (Math.abs(now - decrypted.requestedTime) > this.timeout) {
+            this.logger.debug("Signature for {} has expired", forwardedUrl);
+            this.rejected.increment();
+            return false;
+        }
+
+        return true;
+    }
+
+    private Signature decrypt(String signature, String metadata) {
+        try {
+            JsonNode nonce = OBJECT_MAPPER.readTree(Base64.getUrlDecoder().decode(metadata)).get("nonce");
+            if (nonce == null) {
+                return null;
+            }
+
+            Cipher cipher = CIPHER.get();
+            cipher.init(Cipher.DECRYPT_MODE, this.key, new GCMParameterSpec(TAG_LENGTH, Base64.getDecoder().decode(nonce.asText())));
+            JsonNode plaintext = OBJECT_MAPPER.readTree(cipher.doFinal(Base64.getUrlDecoder().decode(signature)));
+
+            JsonNode forwardedUrl = plaintext.get("forwarded_url");
+            JsonNode requestedTime = plaintext.get("requested_time");
+            if (forwardedUrl == null || requestedTime == null) {
+                return null;
+            }
+
+            return new Signature(forwardedUrl.asText(), OffsetDateTime.parse(requestedTime.asText()).toInstant().toEpochMilli());
+        } catch (GeneralSecurityException | IOException | IllegalArgumentException | DateTimeParseException e) {
+            this.logger.debug("Invalid signature: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static Counter verificationCounter(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("signature.verifications")
+            .description("Route service signatures checked")
+            .tag("result", result)
+            .register(meterRegistry);
+    }
+
+    /**
+     * Derives the AES key from the route service secret as the Gorouter does: PBKDF2 with HMAC-SHA256, an empty salt,
+     * and 100,000 iterations.  The JDK's {@code PBKDF2WithHmacSHA256} rejects an empty salt, so the function is
+     * computed directly.
+     */
+    static byte[] deriveKey(String secret) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return pbkdf2(mac, new byte[0], KEY_ITERATIONS, KEY_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] pbkdf2(Mac mac, byte[] salt, int iterations, int length) {
+        byte[] key = new byte[length];
+        int macLength = mac.getMacLength();
+
+        for (int block = 1, offset = 0; offset < length; block++, offset += macLength) {
+            mac.update(salt);
+            mac.update(new byte[]{(byte) (block >>> 24), (byte) (block >>> 16), (byte) (block >>> 8), (byte) block});
+            byte[] u = mac.doFinal();
+            byte[] t = u.clone();
+
+            for (int i = 1; i < iterations; i++) {
+                u = mac.doFinal(u);
+                for (int j = 0; j < t.length; j++) {
+                    t[j] ^= u[j];
+                }
+            }
+
+            System.arraycopy(t, 0, key, offset, Math.min(macLength, length - offset));
+        }
+
+        return key;
+    }
+
+    private static final class Signature {
+
+        private final String forwardedUrl;
+
+        private final long requestedTime;
+
+        private Signature(String forwardedUrl, long requestedTime) {
+            this.forwardedUrl = forwardedUrl;
+            this.requestedTime = requestedTime;
+        }
+
+    }
+
+}
@@ -0,0 +1,542 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.reactivestreams.Subscription;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import reactor.core.CoreSubscriber;
+import reactor.core.Disposable;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.publisher.Operators;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.concurrent.Queues;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.Supplier;
+
+import static org.springframework.http.HttpHeaders.TRANSFER_ENCODING;
+
+/**
+ * Coalesces concurrent identical {@code GET} and {@code HEAD} requests to configured routes into a single upstream
+ * request, independently of the response cache.
+ * <p>
+ * Requests are identical if they have the same method, URL, and values of the configured key headers.  The first
+ * request starts a flight, and requests that arrive before its response wait for that response instead of going
+ * upstream themselves.  When the response arrives the flight closes, and its body is read once and multicast to every
+ * waiter: each waiter receives its own slice of each buffer, retained rather than copied, and the body is read only as
+ * fast as the slowest waiter.  If every waiter goes away before the response arrives the upstream request is cancelled.
+ * Reading starts once every waiter has started reading its body; waiters that have not done so within the subscribe
+ * timeout are abandoned, so that one waiter going away without reading cannot stall the others.
+ */
+@Component
+final class SingleFlight {
+
+    private static final int PREFETCH = 4;
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final Set<String> routes;
+
+    private final boolean allRoutes;
+
+    private final String[] keyHeaders;
+
+    private final long subscribeTimeout;
+
+    private final Counter leaders;
+
+    private final Counter coalesced;
+
+    SingleFlight(MeterRegistry meterRegistry,
+                 @Value("${SINGLE_FLIGHT_ROUTES:}") String routes,
+                 @Value("${SINGLE_FLIGHT_HEADERS:Accept, Accept-Encoding, Accept-Language, Authorization, Cookie}") String keyHeaders,
+                 @Value("${SINGLE_FLIGHT_SUBSCRIBE_TIMEOUT:1000}") long subscribeTimeout) {
+
+        this.routes = new HashSet<>();
+        for (String route : routes.trim().split("[,\\s]+")) {
+            if (!route.isEmpty()) {
+                this.routes.add(route.toLowerCase(Locale.ROOT));
+            }
+        }
+        this.allRoutes = this.routes.contains("*");
+        this.keyHeaders = Arrays.stream(keyHeaders.trim().split("[,\\s]+"))
+            .filter(name -> !name.isEmpty())
+            .toArray(String[]::new);
+        this.subscribeTimeout = subscribeTimeout;
+
+        this.leaders = result(meterRegistry, "leader");
+        this.coalesced = result(meterRegistry, "coalesced");
+    }
+
+    /**
+     * Returns whether a request may share an upstream request with identical concurrent requests.
+     */
+    boolean isCoalescing(HttpMethod method, String forwardedHost, HttpHeaders requestHeaders) {
+        return !this.routes.isEmpty()
+            && (method == HttpMethod.GET || method == HttpMethod.HEAD)
+            && (this.allRoutes || this.routes.contains(forwardedHost.toLowerCase(Locale.ROOT)))
+            && requestHeaders.getContentLength() <= 0
+            && !requestHeaders.containsKey(TRANSFER_ENCODING);
+    }
+
+    /**
+     * Performs a request, sharing the upstream request and its response with identical concurrent requests.
+     *
+     * @param upstream performs the upstream request; only called for the first of a set of identical requests
+     */
+    Mono<ResponseEntity<Flux<DataBuffer>>> exchange(HttpMethod method, String url, HttpHeaders requestHeaders,
+                                                     Supplier<Mono<ResponseEntity<Flux<DataBuffer>>>> upstream) {
+
+        String key = getKey(method, url, requestHeaders);
+
+        return Mono.defer(() -> {
+            for (;;) {
+                Flight flight = this.flights.computeIfAbsent(key, k -> new Flight(k, upstream));
+                Mono<ResponseEntity<Flux<DataBuffer>>> joined = flight.join();
+                if (joined != null) {
+                    return joined;
+                }
+
+                this.flights.remove(key, flight);
+            }
+        });
+    }
+
+    private String getKey(HttpMethod method, String url, HttpHeaders requestHeaders) {
+        StringBuilder key = new StringBuilder(method.name()).append(' ').append(url);
+
+        for (String name : this.keyHeaders) {
+            key.append('\n');
+            List<String> values = requestHeaders.get(name);
+            if (values != null) {
+                key.append(String.join(",", values));
+            }
+        }
+
+        return key.toString();
+    }
+
+    private static Counter result(MeterRegistry meterRegistry, String result) {
+        return Counter.builder("single.flight.requests")
+            .description("Coalescing requests by whether they went upstream or shared another request's response")
+            .tag("result", result)
+            .register(meterRegistry);
+    }
+
+    private static final class Waiter {
+
+        private final MonoProcessor<ResponseEntity<Flux<DataBuffer>>> processor = MonoProcessor.create();
+
+        private SharedBody.Inner body;
+
+    }
+
+    private final class Flight extends BaseSubscriber<ResponseEntity<Flux<DataBuffer>>> {
+
+        private final String key;
+
+        private final Supplier<Mono<ResponseEntity<Flux<DataBuffer>>>> upstream;
+
+        private final List<Waiter> waiters = new ArrayList<>();
+
+        private boolean started;
+
+        private boolean closed;
+
+        private Flight(String key, Supplier<Mono<ResponseEntity<Flux<DataBuffer>>>> upstream) {
+            this.key = key;
+            this.upstream = upstream;
+        }
+
+        /**
+         * Joins the flight, returning {@code null} if it has already closed.
+         */
+        private Mono<ResponseEntity<Flux<DataBuffer>>> join() {
+            Waiter waiter = new Waiter();
+            boolean first;
+
+            synchronized (this) {
+                if (this.closed) {
+                    return null;
+                }
+
+                first = !this.started;
+                this.started = true;
+                this.waiters.add(waiter);
+            }
+
+            if (first) {
+                SingleFlight.this.leaders.increment();
+                this.upstream.get().subscribe(this);
+            } else {
+                SingleFlight.this.coalesced.increment();
+            }
+
+            return waiter.processor.doOnCancel(() -> leave(waiter));
+        }
+
+        private void leave(Waiter waiter) {
+            boolean abandoned;
+
+            synchronized (this) {
+                if (this.closed) {
+                    if (waiter.body != null) {
+                        waiter.body.abandon();
+                    }
+                    return;
+                }
+
+                this.waiters.remove(waiter);
+                abandoned = this.waiters.isEmpty();
+                this.closed = abandoned;
+            }
+
+            if (abandoned) {
+                SingleFlight.this.flights.remove(this.key, this);
+                dispose();
+            }
+        }
+
+        @Override
+        protected void hookOnNext(ResponseEntity<Flux<DataBuffer>> response) {
+            List<Waiter> waiters;
+
+            synchronized (this) {
+                if (this.closed) {
+                    response.getBody().subscribe(DataBufferUtils::release);
+                    return;
+                }
+
+                this.closed = true;
+                waiters = new ArrayList<>(this.waiters);
+
+                SharedBody body = new SharedBody(response.getBody(), waiters.size(), SingleFlight.this.subscribeTimeout);
+                for (int i = 0; i < waiters.size(); i++) {
+                    waiters.get(i).body = body.inners[i];
+                }
+            }
+            SingleFlight.this.flights.remove(this.key, this);
+
+            HttpHeaders headers = HttpHeaders.readOnlyHttpHeaders(response.getHeaders());
+            for (Waiter waiter : waiters) {
+                waiter.processor.onNext(new ResponseEntity<>(waiter.body, headers, response.getStatusCode()));
+            }
+        }
+
+        @Override
+        protected void hookOnError(Throwable throwable) {
+            for (Waiter waiter : close()) {
+                waiter.processor.onError(throwable);
+            }
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            for (Waiter waiter : close()) {
+                waiter.processor.onComplete();
+            }
+        }
+
+        private List<Waiter> close() {
+            List<Waiter> waiters;
+
+            synchronized (this) {
+                waiters = this.closed ? new ArrayList<>() : new ArrayList<>(this.waiters);
+                this.closed = true;
+            }
+            SingleFlight.this.flights.remove(this.key, this);
+
+            return waiters;
+        }
+
+    }
+
+    /**
+     * A body read once and delivered to a fixed number of subscribers.  Reading starts once every subscriber has
+     * subscribed or been abandoned, so none of them misses the start of the body.  Subscribers that have not subscribed
+     * by the deadline are abandoned.
+     */
+    private static final class SharedBody implements CoreSubscriber<DataBuffer> {
+
+        private static final AtomicIntegerFieldUpdater<SharedBody> WIP = AtomicIntegerFieldUpdater.newUpdater(SharedBody.class, "wip");
+
+        private final Queue<DataBuffer> queue = Queues.<DataBuffer>unbounded().get();
+
+        private final Flux<DataBuffer> source;
+
+        private final Inner[] inners;
+
+        private final AtomicInteger pending;
+
+        private final Disposable deadline;
+
+        private Subscription upstream;
+
+        private long ahead;
+
+        private boolean terminated;
+
+        private Throwable error;
+
+        private volatile boolean done;
+
+        private volatile int wip;
+
+        private SharedBody(Flux<DataBuffer> source, int subscribers, long subscribeTimeout) {
+            this.source = source;
+            this.inners = new Inner[subscribers];
+            for (int i = 0; i < subscribers; i++) {
+                this.inners[i] = new Inner(this);
+            }
+            this.pending = new AtomicInteger(subscribers);
+            this.deadline = Schedulers.parallel().schedule(this::expire, subscribeTimeout, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (Operators.validate(this.upstream, s)) {
+                this.upstream = s;
+                drain();
+            }
+        }
+
+        @Override
+        public void onNext(DataBuffer buffer) {
+            if (this.done) {
+                DataBufferUtils.release(buffer);
+                return;
+            }
+
+            this.queue.offer(buffer);
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (this.done) {
+                Operators.onErrorDropped(t, currentContext());
+                return;
+            }
+
+            this.error = t;
+            this.done = true;
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            this.done = true;
+            drain();
+        }
+
+        private void arrived() {
+            if (this.pending.decrementAndGet() == 0) {
+                this.deadline.dispose();
+                this.source.subscribe(this);
+            }
+        }
+
+        private void expire() {
+            for (Inner inner : this.inners) {
+                inner.abandon();
+            }
+        }
+
+        private void drain() {
+            if (WIP.getAndIncrement(this) != 0) {
+                return;
+            }
+
+            int missed = 1;
+            for (;;) {
+                if (!this.terminated && this.upstream != null) {
+                    emit();
+                }
+
+                missed = WIP.addAndGet(this, -missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void emit() {
+            for (;;) {
+                long demand = Long.MAX_VALUE;
+                boolean live = false;
+
+                for (Inner inner : this.inners) {
+                    if (inner.state == Inner.SUBSCRIBED) {
+                        live = true;
+                        demand = Math.min(demand, inner.requested - inner.emitted);
+                    }
+                }
+
+                if (!live) {
+                    this.terminated = true;
+                    this.upstream.cancel();
+                    clear();
+                    return;
+                }
+
+                boolean done = this.done;
+
+                if (done && this.error != null) {
+                    terminate(this.error);
+                    return;
+                }
+
+                DataBuffer buffer = demand > 0 ? this.queue.poll() : null;
+                if (buffer == null) {
+                    if (done && this.queue.isEmpty()) {
+                        terminate(null);
+                        return;
+                    }
+                    break;
+                }
+
+                for (Inner inner : this.inners) {
+                    if (inner.state == Inner.SUBSCRIBED) {
+                        inner.emitted++;
+                        inner.actual.onNext(DataBufferUtils.retain(buffer).slice(buffer.readPosition(), buffer.readableByteCount()));
+                    }
+                }
+                DataBufferUtils.release(buffer);
+                this.ahead--;
+            }
+
+            if (!this.done && this.ahead <= PREFETCH / 2) {
+                long n = PREFETCH - this.ahead;
+                this.ahead += n;
+                this.upstream.request(n);
+            }
+        }
+
+        private void terminate(Throwable error) {
+            this.terminated = true;
+            clear();
+
+            for (Inner inner : this.inners) {
+                if (Inner.STATE.compareAndSet(inner, Inner.SUBSCRIBED, Inner.DONE)) {
+                    if (error != null) {
+                        inner.actual.onError(error);
+                    } else {
+                        inner.actual.onComplete();
+                    }
+                }
+            }
+        }
+
+        private void clear() {
+            DataBuffer buffer;
+            while ((buffer = this.queue.poll()) != null) {
+                DataBufferUtils.release(buffer);
+            }
+        }
+
+        private static final class Inner extends Flux<DataBuffer> implements Subscription {
+
+            private static final int WAITING = 0;
+
+            private static final int SUBSCRIBED = 1;
+
+            private static final int DONE = 2;
+
+            private static final AtomicIntegerFieldUpdater<Inner> STATE = AtomicIntegerFieldUpdater.newUpdater(Inner.class, "state");
+
+            private static final AtomicLongFieldUpdater<Inner> REQUESTED = AtomicLongFieldUpdater.newUpdater(Inner.class, "requested");
+
+            private final SharedBody parent;
+
+            private CoreSubscriber<? super DataBuffer> actual;
+
+            private long emitted;
+
+            private volatile int state;
+
+            private volatile long requested;
+
+            private Inner(SharedBody parent) {
+                this.parent = parent;
+            }
+
+            @Override
+            public void subscribe(CoreSubscriber<? super DataBuffer> actual) {
+                if (this.state != WAITING) {
+                    Operators.error(actual, new IllegalStateException("The shared response body allows only one subscriber, which must subscribe within the subscribe timeout"));
+                    return;
+                }
+
+                this.actual = actual;
+                if (!STATE.compareAndSet(this, WAITING, SUBSCRIBED)) {
+                    Operators.error(actual, new IllegalStateException("The shared response body allows only one subscriber"));
+                    return;
+                }
+
+                actual.onSubscribe(this);
+                this.parent.arrived();
+            }
+
+            @Override
+            public void request(long n) {
+                if (Operators.validate(n)) {
+                    Operators.addCap(REQUESTED, this, n);
+                    this.parent.drain();
+                }
+            }
+
+            @Override
+            public void cancel() {
+                if (STATE.compareAndSet(this, SUBSCRIBED, DONE)) {
+                    this.parent.drain();
+                }
+            }
+
+            private void abandon() {
+                if (STATE.compareAndSet(this, WAITING, DONE)) {
+                    this.parent.arrived();
+                }
+            }
+
+        }
+
+    }
+
+}
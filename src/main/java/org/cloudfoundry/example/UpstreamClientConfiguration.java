@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.ipc.netty.resources.LoopResources;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Configuration of the {@link WebClient} used to forward requests.  The client and the inbound server share a single
+ * set of event loops so that an upstream connection is serviced by the same thread as the inbound connection that
+ * triggered it.
+ */
+@Configuration
+class UpstreamClientConfiguration {
+
+    @Bean(destroyMethod = "dispose")
+    LoopResources loopResources(@Value("${EVENT_LOOP_THREADS:0}") int threads) {
+        return LoopResources.create("route-service", threads > 0 ? threads : LoopResources.DEFAULT_IO_WORKER_COUNT, true);
+    }
+
+    @Bean
+    WebServerFactoryCustomizer<NettyReactiveWebServerFactory> loopResourcesCustomizer(LoopResources loopResources) {
+        return factory -> factory.addServerCustomizers(builder -> builder.loopResources(loopResources));
+    }
+
+    @Bean(destroyMethod = "dispose")
+    UpstreamPoolResources upstreamPoolResources(MeterRegistry meterRegistry,
+                                                @Value("${UPSTREAM_MAX_CONNECTIONS:500}") int maxConnections,
+                                                @Value("${UPSTREAM_MAX_PENDING_ACQUIRES:1000}") int maxPendingAcquires,
+                                                @Value("${UPSTREAM_ACQUIRE_TIMEOUT:45000}") long acquireTimeout,
+                                                @Value("${UPSTREAM_MAX_IDLE_TIME:60000}") long maxIdleTime,
+                                                @Value("${UPSTREAM_MAX_LIFE_TIME:0}") long maxLifeTime) {
+
+        return new UpstreamPoolResources(meterRegistry, maxConnections, maxPendingAcquires, acquireTimeout, maxIdleTime, maxLifeTime);
+    }
+
+    @Bean
+    WebClient webClient(LoopResources loopResources, UpstreamPoolResources upstreamPoolResources,
+                        @Value("${UPSTREAM_CONNECT_TIMEOUT:10000}") int connectTimeout,
+                        @Value("${UPSTREAM_READ_TIMEOUT:0}") long readTimeout) {
+
+        ReactorClientHttpConnector connector = new ReactorClientHttpConnector(options -> {
+            options
+                .loopResources(loopResources)
+                .poolResources(upstreamPoolResources)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout)
+                .option(ChannelOption.SO_KEEPALIVE, true);
+
+            if (readTimeout > 0) {
+                options.afterNettyContextInit(context -> context.addHandlerLast(new ReadTimeoutHandler(readTimeout, MILLISECONDS)));
+            }
+        });
+
+        return WebClient.builder()
+            .clientConnector(connector)
+            .build();
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.pool.ChannelPool;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import reactor.ipc.netty.resources.PoolResources;
+
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Upstream connection pools, one per destination host and port, with a bounded pending-acquire queue, eviction of
+ * idle and expired connections, and occupancy and acquire latency metrics.  Occupancy is reported as totals across all
+ * destinations, since backend addresses change with every restage and scale event.
+ */
+final class UpstreamPoolResources implements PoolResources {
+
+    private static final AttributeKey<Boolean> ACQUIRED = AttributeKey.valueOf("upstreamAcquired");
+
+    private static final AttributeKey<Long> CREATED = AttributeKey.valueOf("upstreamCreated");
+
+    private static final String IDLE_EVICTION_HANDLER = "upstreamIdleEviction";
+
+    private final PoolResources delegate;
+
+    private final int maxPendingAcquires;
+
+    private final long maxIdleTime;
+
+    private final long maxLifeTime;
+
+    private final Map<ChannelPool, InstrumentedChannelPool> pools = new ConcurrentHashMap<>();
+
+    private final Timer acquireTimer;
+
+    private final Counter evictions;
+
+    private final Counter rejections;
+
+    /**
+     * @param maxConnections     the maximum number of connections to each destination
+     * @param maxPendingAcquires the maximum number of requests waiting for a connection to each destination
+     * @param acquireTimeout     the maximum time in milliseconds to wait for a connection
+     * @param maxIdleTime        the time in milliseconds after which an unused connection is closed, {@code 0} to disable
+     * @param maxLifeTime        the time in milliseconds after which a connection is closed once released, {@code 0} to disable
+     */
+    UpstreamPoolResources(MeterRegistry meterRegistry, int maxConnections, int maxPendingAcquires, long acquireTimeout, long maxIdleTime, long maxLifeTime) {
+        this.delegate = PoolResources.fixed("upstream", maxConnections, acquireTimeout);
+        this.maxPendingAcquires = maxPendingAcquires;
+        this.maxIdleTime = maxIdleTime;
+        this.maxLifeTime = maxLifeTime;
+
+        this.acquireTimer = Timer.builder("upstream.pool.acquire")
+            .description("Time spent waiting for an upstream connection")
+            .publishPercentiles(0.5, 0.95, 0.99)
+            .register(meterRegistry);
+        this.evictions = Counter.builder("upstream.pool.evictions")
+            .description("Upstream connections closed because they were idle or expired")
+            .register(meterRegistry);
+        this.rejections = Counter.builder("upstream.pool.rejections")
+            .description("Upstream connection acquisitions rejected because too many were pending")
+            .register(meterRegistry);
+
+        Gauge.builder("upstream.pool.acquired", this.pools, pools -> sum(pools, pool -> pool.acquired))
+            .description("Upstream connections currently in use")
+            .register(meterRegistry);
+        Gauge.builder("upstream.pool.pending", this.pools, pools -> sum(pools, pool -> pool.pending))
+            .description("Requests currently waiting for an upstream connection")
+            .register(meterRegistry);
+    }
+
+    @Override
+    public ChannelPool selectOrCreate(SocketAddress address, Supplier<? extends Bootstrap> bootstrap, Consumer<? super Channel> onChannelCreate,
+                                      EventLoopGroup group) {
+
+        ChannelPool pool = this.delegate.selectOrCreate(address, bootstrap, onChannelCreate, group);
+
+        InstrumentedChannelPool instrumented = this.pools.get(pool);
+        if (instrumented == null) {
+            instrumented = this.pools.computeIfAbsent(pool, p -> new InstrumentedChannelPool(p, group));
+        }
+
+        return instrumented;
+    }
+
+    @Override
+    public void dispose() {
+        this.delegate.dispose();
+    }
+
+    private static int sum(Map<ChannelPool, InstrumentedChannelPool> pools, Function<InstrumentedChannelPool, AtomicInteger> counter) {
+        int sum = 0;
+        for (InstrumentedChannelPool pool : pools.values()) {
+            sum += counter.apply(pool).get();
+        }
+        return sum;
+    }
+
+    private final class InstrumentedChannelPool implements ChannelPool {
+
+        private final ChannelPool delegate;
+
+        private final EventLoopGroup group;
+
+        private final AtomicInteger acquired = new AtomicInteger();
+
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private InstrumentedChannelPool(ChannelPool delegate, EventLoopGroup group) {
+            this.delegate = delegate;
+            this.group = group;
+        }
+
+        @Override
+        public Future<Channel> acquire() {
+            return acquire(this.group.next().newPromise());
+        }
+
+        @Override
+        public Future<Channel> acquire(Promise<Channel> promise) {
+            if (this.pending.incrementAndGet() > UpstreamPoolResources.this.maxPendingAcquires) {
+                this.pending.decrementAndGet();
+                UpstreamPoolResources.this.rejections.increment();
+                return promise.setFailure(new IllegalStateException("Too many requests waiting for an upstream connection"));
+            }
+
+            long start = System.nanoTime();
+            this.delegate.acquire(promise).addListener(future -> {
+                this.pending.decrementAndGet();
+                UpstreamPoolResources.this.acquireTimer.record(System.nanoTime() - start, NANOSECONDS);
+
+                if (future.isSuccess()) {
+                    onAcquired((Channel) future.getNow());
+                }
+            });
+
+            return promise;
+        }
+
+        @Override
+        public Future<Void> release(Channel channel) {
+            return release(channel, channel.eventLoop().newPromise());
+        }
+
+        @Override
+        public Future<Void> release(Channel channel, Promise<Void> promise) {
+            this.acquired.decrementAndGet();
+            channel.attr(ACQUIRED).set(Boolean.FALSE);
+
+            Long created = channel.attr(CREATED).get();
+            long maxLifeTime = UpstreamPoolResources.this.maxLifeTime;
+            if (maxLifeTime > 0 && created != null && System.currentTimeMillis() - created > maxLifeTime) {
+                UpstreamPoolResources.this.evictions.increment();
+                channel.close().addListener(future -> this.delegate.release(channel, promise));
+                return promise;
+            }
+
+            return this.delegate.release(channel, promise);
+        }
+
+        @Override
+        public void close() {
+            this.delegate.close();
+        }
+
+        private void onAcquired(Channel channel) {
+            this.acquired.incrementAndGet();
+            channel.attr(ACQUIRED).set(Boolean.TRUE);
+            channel.attr(CREATED).setIfAbsent(System.currentTimeMillis());
+
+            long maxIdleTime = UpstreamPoolResources.this.maxIdleTime;
+            if (maxIdleTime > 0 && channel.pipeline().get(IDLE_EVICTION_HANDLER) == null) {
+                channel.pipeline().addFirst(IDLE_EVICTION_HANDLER, new IdleEvictionHandler(maxIdleTime));
+            }
+        }
+
+    }
+
+    private final class IdleEvictionHandler extends IdleStateHandler {
+
+        private IdleEvictionHandler(long maxIdleTime) {
+            super(0, 0, maxIdleTime, MILLISECONDS);
+        }
+
+        @Override
+        protected void channelIdle(ChannelHandlerContext ctx, IdleStateEvent evt) {
+            if (!Boolean.TRUE.equals(ctx.channel().attr(ACQUIRED).get())) {
+                UpstreamPoolResources.this.evictions.increment();
+                ctx.close();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.reactivestreams.Subscription;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import reactor.core.Disposable;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.springframework.http.HttpHeaders.TRANSFER_ENCODING;
+
+/**
+ * Retries and hedges upstream requests that are safe to repeat: {@code GET}, {@code HEAD}, {@code PUT} and
+ * {@code DELETE} requests without a body.  Requests with a body are never repeated, because the inbound body can only
+ * be read once.
+ * <p>
+ * A request that fails with an I/O error before its response headers arrive, such as a refused connection or a reset,
+ * is retried after a random delay of up to the backoff, which doubles with each retry up to its maximum.  On hedged
+ * routes, if no response has arrived after the route's estimated response time percentile, a second request is sent
+ * and the first response of either is used; the other request is cancelled, and its response body discarded if it has
+ * one.  Retries and hedges both spend from a retry budget, which earns a fraction of a token for every upstream request
+ * and also refills at a minimum rate, so that they cannot multiply the load on a failing upstream.
+ */
+@Component
+final class UpstreamRetries {
+
+    private static final long MAX_HOSTS = 10000;
+
+    private static final int MIN_SAMPLES = 20;
+
+    private final int maxRetries;
+
+    private final long backoff;
+
+    private final long maxBackoff;
+
+    private final Set<String> hedgeRoutes;
+
+    private final boolean allHedgeRoutes;
+
+    private final double hedgePercentile;
+
+    private final long hedgeMinDelay;
+
+    private final Budget budget;
+
+    private final Cache<String, LatencyEstimate> latencies;
+
+    private final Counter retries;
+
+    private final Counter retriesExhausted;
+
+    private final Counter hedges;
+
+    private final Counter hedgesExhausted;
+
+    private final Counter hedgeWins;
+
+    UpstreamRetries(MeterRegistry meterRegistry,
+                    @Value("${UPSTREAM_RETRIES:0}") int maxRetries,
+                    @Value("${UPSTREAM_RETRY_BACKOFF:25}") long backoff,
+                    @Value("${UPSTREAM_RETRY_MAX_BACKOFF:250}") long maxBackoff,
+                    @Value("${UPSTREAM_HEDGE_ROUTES:}") String hedgeRoutes,
+                    @Value("${UPSTREAM_HEDGE_PERCENTILE:0.95}") double hedgePercentile,
+                    @Value("${UPSTREAM_HEDGE_MIN_DELAY:5}") long hedgeMinDelay,
+                    @Value("${RETRY_BUDGET_RATIO:0.1}") double budgetRatio,
+                    @Value("${RETRY_BUDGET_MIN_PER_SECOND:10}") double budgetMinRate) {
+
+        this.maxRetries = Math.max(0, maxRetries);
+        this.backoff = TimeUnit.MILLISECONDS.toNanos(Math.max(1, backoff));
+        this.maxBackoff = Math.max(this.backoff, TimeUnit.MILLISECONDS.toNanos(maxBackoff));
+
+        this.hedgeRoutes = new HashSet<>();
+        for (String route : hedgeRoutes.trim().split("[,\\s]+")) {
+            if (!route.isEmpty()) {
+                this.hedgeRoutes.add(route.toLowerCase(Locale.ROOT));
+            }
+        }
+        this.allHedgeRoutes = this.hedgeRoutes.contains("*");
+        this.hedgePercentile = Math.min(Math.max(hedgePercentile, 0.5), 0.999);
+        this.hedgeMinDelay = TimeUnit.MILLISECONDS.toNanos(Math.max(0, hedgeMinDelay));
+
+        this.budget = new Budget(budgetRatio, budgetMinRate);
+        this.latencies = Caffeine.newBuilder()
+            .maximumSize(MAX_HOSTS)
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .build();
+
+        this.retries = attempts(meterRegistry, "retry", "sent");
+        this.retriesExhausted = attempts(meterRegistry, "retry", "budget_exhausted");
+        this.hedges = attempts(meterRegistry, "hedge", "sent");
+        this.hedgesExhausted = attempts(meterRegistry, "hedge", "budget_exhausted");
+        this.hedgeWins = Counter.builder("upstream.hedge.wins")
+            .description("Hedged requests whose response arrived before the original request's")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Returns whether a request may be sent upstream more than once.  Such requests must be sent without a body.
+     */
+    boolean isRepeatable(HttpMethod method, HttpHeaders requestHeaders) {
+        return (this.maxRetries > 0 || !this.hedgeRoutes.isEmpty())
+            && (method == HttpMethod.GET || method == HttpMethod.HEAD || method == HttpMethod.PUT || method == HttpMethod.DELETE)
+            && requestHeaders.getContentLength() <= 0
+            && !requestHeaders.containsKey(TRANSFER_ENCODING);
+    }
+
+    /**
+     * Performs an upstream request, retrying and hedging it if it is repeatable.
+     *
+     * @param forwardedHost the host the request is forwarded to
+     * @param repeatable    whether the request is {@link #isRepeatable(HttpMethod, HttpHeaders) repeatable}
+     * @param attempt       sends the request once for each call
+     */
+    Mono<ClientResponse> exchange(String forwardedHost, boolean repeatable, Supplier<Mono<ClientResponse>> attempt) {
+        return Mono.defer(() -> {
+            this.budget.deposit();
+
+            if (!repeatable) {
+                return attempt.get();
+            }
+
+            boolean hedged = isHedged(forwardedHost);
+            Mono<ClientResponse> primary = retried(hedged ? timed(forwardedHost, attempt) : Mono.defer(attempt));
+            if (!hedged) {
+                return primary;
+            }
+
+            long delay = getHedgeDelay(forwardedHost);
+            return delay < 0 ? primary : race(primary, timed(forwardedHost, attempt), delay);
+        });
+    }
+
+    /**
+     * Returns the nanoseconds after which a request to a host is hedged, or {@code -1} if too few of its responses have
+     * been seen yet.
+     */
+    long getHedgeDelay(String forwardedHost) {
+        LatencyEstimate estimate = this.latencies.getIfPresent(forwardedHost);
+        if (estimate == null || estimate.samples < MIN_SAMPLES) {
+            return -1;
+        }
+
+        return Math.max(this.hedgeMinDelay, (long) estimate.value);
+    }
+
+    /**
+     * Records the time a host took to respond.
+     */
+    void recordLatency(String forwardedHost, long nanos) {
+        LatencyEstimate estimate = this.latencies.getIfPresent(forwardedHost);
+        if (estimate == null) {
+            estimate = this.latencies.get(forwardedHost, host -> new LatencyEstimate());
+        }
+
+        estimate.record(nanos, this.hedgePercentile);
+    }
+
+    /**
+     * Returns the nanoseconds to wait before a retry: a random delay of up to the backoff doubled for each earlier retry,
+     * capped at the maximum backoff.
+     */
+    long getBackoff(int retry) {
+        long ceiling = this.backoff << Math.min(retry - 1, 20);
+        return ThreadLocalRandom.current().nextLong(Math.min(ceiling, this.maxBackoff) + 1);
+    }
+
+    /**
+     * Returns whether an error, or any of its causes, is an {@link IOException}.
+     */
+    static boolean isRetryable(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static Counter attempts(MeterRegistry meterRegistry, String type, String result) {
+        return Counter.builder("upstream.retries")
+            .description("Additional upstream requests sent, or not sent because the retry budget was exhausted")
+            .tag("type", type)
+            .tag("result", result)
+            .register(meterRegistry);
+    }
+
+    private static void discard(ClientResponse response) {
+        response.bodyToFlux(DataBuffer.class).take(0).subscribe();
+    }
+
+    private boolean isHedged(String forwardedHost) {
+        return !this.hedgeRoutes.isEmpty() && (this.allHedgeRoutes || this.hedgeRoutes.contains(forwardedHost.toLowerCase(Locale.ROOT)));
+    }
+
+    private Mono<ClientResponse> timed(String forwardedHost, Supplier<Mono<ClientResponse>> attempt) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return attempt.get()
+                .doOnNext(response -> recordLatency(forwardedHost, System.nanoTime() - start));
+        });
+    }
+
+    private Mono<ClientResponse> retried(Mono<ClientResponse> attempt) {
+        if (this.maxRetries == 0) {
+            return attempt;
+        }
+
+        return attempt.retryWhen(errors -> {
+            AtomicInteger count = new AtomicInteger();
+
+            return errors.concatMap(error -> {
+                int retry = count.incrementAndGet();
+                if (!isRetryable(error) || retry > this.maxRetries) {
+                    return Mono.error(error);
+                }
+
+                if (!this.budget.withdraw()) {
+                    this.retriesExhausted.increment();
+                    return Mono.error(error);
+                }
+
+                this.retries.increment();
+                return Mono.delay(Duration.ofNanos(getBackoff(retry)));
+            });
+        });
+    }
+
+    private Mono<ClientResponse> race(Mono<ClientResponse> primary, Mono<ClientResponse> hedge, long delay) {
+        return Mono.create(sink -> {
+            Race race = new Race(sink);
+            sink.onCancel(race::cancel);
+
+            race.start(primary, false);
+            race.setTimer(Mono.delay(Duration.ofNanos(delay))
+                .subscribe(tick -> {
+                    if (!race.isDone()) {
+                        if (this.budget.withdraw()) {
+                            this.hedges.increment();
+                            race.start(hedge, true);
+                        } else {
+                            this.hedgesExhausted.increment();
+                        }
+                    }
+                }));
+        });
+    }
+
+    /**
+     * A streaming estimate of a latency percentile.  Each sample moves the estimate up by a fraction of itself if the
+     * sample is larger, and down by a smaller fraction if not, weighted so that the estimate settles where the given
+     * fraction of samples are smaller.  Concurrent updates may be lost, which only slows convergence.
+     */
+    static final class LatencyEstimate {
+
+        private static final double RATE = 0.05;
+
+        private volatile double value;
+
+        private volatile long samples;
+
+        void record(long nanos, double percentile) {
+            long samples = this.samples;
+            this.samples = samples + 1;
+
+            if (samples == 0) {
+                this.value = nanos;
+                return;
+            }
+
+            double value = this.value;
+            double step = Math.max(value, 1) * RATE;
+            this.value = nanos > value ? value + step * percentile : value - step * (1 - percentile);
+        }
+
+        double getValue() {
+            return this.value;
+        }
+
+    }
+
+    /**
+     * A retry budget.  Every request deposits a fraction of a token in a pool, which holds at most the tokens earned by
+     * a thousand requests, and a retry takes a whole token from it.  When the pool is empty, retries are taken from a
+     * reserve bucket that refills at a fixed rate, so that routes with little traffic can still retry.
+     */
+    static final class Budget {
+
+        private static final long SCALE = 1000;
+
+        private final long origin = System.nanoTime();
+
+        private final AtomicLong pool = new AtomicLong();
+
+        private final AtomicLong reserve = new AtomicLong(Long.MIN_VALUE);
+
+        private final long deposit;
+
+        private final long capacity;
+
+        private final long interval;
+
+        private final long reserveCapacity;
+
+        Budget(double ratio, double minRate) {
+            this.deposit = Math.max(0, (long) (ratio * SCALE));
+            this.capacity = Math.max(SCALE, this.deposit * SCALE);
+            this.interval = minRate > 0 ? Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / minRate)) : 0;
+            this.reserveCapacity = this.interval * Math.max(1, (long) Math.ceil(minRate));
+        }
+
+        void deposit() {
+            if (this.deposit == 0) {
+                return;
+            }
+
+            for (;;) {
+                long balance = this.pool.get();
+                if (balance >= this.capacity || this.pool.compareAndSet(balance, Math.min(this.capacity, balance + this.deposit))) {
+                    return;
+                }
+            }
+        }
+
+        boolean withdraw() {
+            return withdraw(System.nanoTime() - this.origin);
+        }
+
+        boolean withdraw(long now) {
+            for (;;) {
+                long balance = this.pool.get();
+                if (balance < SCALE) {
+                    break;
+                }
+                if (this.pool.compareAndSet(balance, balance - SCALE)) {
+                    return true;
+                }
+            }
+
+            if (this.interval == 0) {
+                return false;
+            }
+
+            for (;;) {
+                long theoreticalArrival = this.reserve.get();
+                long next = Math.max(theoreticalArrival, now) + this.interval;
+                if (next - now > this.reserveCapacity) {
+                    return false;
+                }
+                if (this.reserve.compareAndSet(theoreticalArrival, next)) {
+                    return true;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * The original request and its hedge.  The first response completes the sink and cancels the other request; the
+     * sink fails once every request started has failed.
+     */
+    private final class Race {
+
+        private final MonoSink<ClientResponse> sink;
+
+        private final List<Attempt> attempts = new ArrayList<>(2);
+
+        private Disposable timer;
+
+        private int running;
+
+        private boolean done;
+
+        private Race(MonoSink<ClientResponse> sink) {
+            this.sink = sink;
+        }
+
+        private synchronized boolean isDone() {
+            return this.done;
+        }
+
+        private void setTimer(Disposable timer) {
+            boolean dispose;
+            synchronized (this) {
+                this.timer = timer;
+                dispose = this.done;
+            }
+
+            if (dispose) {
+                timer.dispose();
+            }
+        }
+
+        private void start(Mono<ClientResponse> request, boolean hedge) {
+            Attempt attempt = new Attempt(this, hedge);
+            synchronized (this) {
+                if (this.done) {
+                    return;
+                }
+                this.attempts.add(attempt);
+                this.running++;
+            }
+
+            request.subscribe(attempt);
+        }
+
+        private void cancel() {
+            List<Disposable> disposables = finish();
+            if (disposables != null) {
+                disposables.forEach(Disposable::dispose);
+            }
+        }
+
+        private List<Disposable> finish() {
+            synchronized (this) {
+                if (this.done) {
+                    return null;
+                }
+                this.done = true;
+
+                List<Disposable> disposables = new ArrayList<>(this.attempts);
+                if (this.timer != null) {
+                    disposables.add(this.timer);
+                }
+                return disposables;
+            }
+        }
+
+        private void onResponse(Attempt winner, ClientResponse response) {
+            List<Disposable> disposables = finish();
+            if (disposables == null) {
+                discard(response);
+                return;
+            }
+
+            disposables.stream()
+                .filter(disposable -> disposable != winner)
+                .forEach(Disposable::dispose);
+
+            if (winner.hedge) {
+                UpstreamRetries.this.hedgeWins.increment();
+            }
+            this.sink.success(response);
+        }
+
+        private void onError(Throwable error) {
+            synchronized (this) {
+                if (--this.running > 0) {
+                    return;
+                }
+            }
+
+            List<Disposable> disposables = finish();
+            if (disposables != null) {
+                disposables.forEach(Disposable::dispose);
+                this.sink.error(error);
+            }
+        }
+
+    }
+
+    private static final class Attempt extends BaseSubscriber<ClientResponse> {
+
+        private final Race race;
+
+        private final boolean hedge;
+
+        private boolean responded;
+
+        private Attempt(Race race, boolean hedge) {
+            this.race = race;
+            this.hedge = hedge;
+        }
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            subscription.request(1);
+        }
+
+        @Override
+        protected void hookOnNext(ClientResponse response) {
+            this.responded = true;
+            this.race.onResponse(this, response);
+        }
+
+        @Override
+        protected void hookOnError(Throwable error) {
+            this.race.onError(error);
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            if (!this.responded) {
+                this.race.onError(new NoSuchElementException("No upstream response"));
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.web.reactive.context.ReactiveWebServerInitializedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.cloudfoundry.example.Controller.FORWARDED_FOR;
+import static org.cloudfoundry.example.Controller.FORWARDED_URL;
+import static org.cloudfoundry.example.Controller.PROXY_METADATA;
+import static org.cloudfoundry.example.Controller.PROXY_SIGNATURE;
+
+/**
+ * Warms up a new instance before it reports itself healthy.
+ * <p>
+ * Once the server is listening, a connection is opened to each configured upstream URL as many times as configured, so
+ * that the first requests find connections in the pool, and then a number of requests are proxied from the instance
+ * back to itself so that the request path is loaded and compiled before real traffic arrives.  The proxied requests are
+ * forwarded to {@code /warmup} on the instance itself, which answers with a small {@code 200} response.  These requests
+ * carry a token known only to this process and are only accepted from a loopback address; they pass the allowlist,
+ * signature and rate limit checks without being subject to them, and are not measured or logged.  Until the warm-up completes, the {@code warmup} health indicator
+ * reports {@code OUT_OF_SERVICE}.  Failures during the warm-up are logged but do not keep the instance out of service.
+ */
+@Component
+final class Warmup implements HealthIndicator {
+
+    static final String WARMUP_TOKEN = "X-Route-Service-Warmup";
+
+    static final String TARGET_PATH = "/warmup";
+
+    private static final ByteBuffer TARGET_BODY = targetBody(1024);
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final String token = newToken();
+
+    private final WebClient webClient;
+
+    private final int requests;
+
+    private final int concurrency;
+
+    private final List<String> upstreamUrls;
+
+    private final int upstreamConnections;
+
+    private final Duration timeout;
+
+    private final boolean exit;
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile long startedAt = -1;
+
+    private volatile long readyAt = -1;
+
+    private volatile boolean ready;
+
+    Warmup(MeterRegistry meterRegistry, WebClient webClient,
+           @Value("${WARMUP_REQUESTS:0}") int requests,
+           @Value("${WARMUP_CONCURRENCY:16}") int concurrency,
+           @Value("${WARMUP_UPSTREAM_URLS:}") String upstreamUrls,
+           @Value("${WARMUP_UPSTREAM_CONNECTIONS:8}") int upstreamConnections,
+           @Value("${WARMUP_TIMEOUT:60000}") long timeout,
+           @Value("${WARMUP_EXIT:false}") boolean exit) {
+
+        this.webClient = webClient;
+        this.requests = Math.max(0, requests);
+        this.concurrency = Math.max(1, concurrency);
+        this.upstreamUrls = Arrays.stream(upstreamUrls.trim().split("[,\\s]+"))
+            .filter(url -> !url.isEmpty())
+            .collect(Collectors.toList());
+        this.upstreamConnections = Math.max(1, upstreamConnections);
+        this.timeout = Duration.ofMillis(timeout);
+        this.exit = exit;
+
+        TimeGauge.builder("application.started.time", this, TimeUnit.MILLISECONDS, warmup -> warmup.startedAt < 0 ? Double.NaN : warmup.startedAt)
+            .description("Time from the start of the JVM until the server was listening")
+            .register(meterRegistry);
+        TimeGauge.builder("application.ready.time", this, TimeUnit.MILLISECONDS, warmup -> warmup.readyAt < 0 ? Double.NaN : warmup.readyAt)
+            .description("Time from the start of the JVM until the warm-up completed")
+            .register(meterRegistry);
+    }
+
+    @Override
+    public Health health() {
+        Health.Builder health = this.ready ? Health.up() : Health.outOfService();
+
+        if (this.startedAt >= 0) {
+            health.withDetail("startedMillis", this.startedAt);
+        }
+        if (this.readyAt >= 0) {
+            health
+                .withDetail("readyMillis", this.readyAt)
+                .withDetail("failures", this.failures.get());
+        }
+
+        return health.build();
+    }
+
+    /**
+     * Returns whether a request was sent by the warm-up of this process.
+     */
+    boolean isWarmupRequest(ServerHttpRequest request) {
+        String token = request.getHeaders().getFirst(WARMUP_TOKEN);
+        if (token == null || !token.equals(this.token)) {
+            return false;
+        }
+
+        InetSocketAddress remoteAddress = request.getRemoteAddress();
+        return remoteAddress != null && remoteAddress.getAddress() != null && remoteAddress.getAddress().isLoopbackAddress();
+    }
+
+    /**
+     * Returns whether a request is the forwarded leg of a warm-up request, which {@link #respond} answers.
+     */
+    boolean isWarmupTarget(ServerHttpRequest request) {
+        return TARGET_PATH.equals(request.getPath().pathWithinApplication().value()) && isWarmupRequest(request);
+    }
+
+    /**
+     * Answers the forwarded leg of a warm-up request.
+     */
+    Mono<Void> respond(ServerHttpResponse response) {
+        response.setStatusCode(HttpStatus.OK);
+        response.getHeaders().setContentType(MediaType.TEXT_PLAIN);
+        response.getHeaders().setContentLength(TARGET_BODY.remaining());
+        return response.writeWith(Mono.just(response.bufferFactory().wrap(TARGET_BODY.duplicate())));
+    }
+
+    @EventListener
+    void onServerInitialized(ReactiveWebServerInitializedEvent event) {
+        if (event.getApplicationContext().getServerNamespace() != null) {
+            return;
+        }
+
+        this.startedAt = ManagementFactory.getRuntimeMXBean().getUptime();
+        int port = event.getWebServer().getPort();
+
+        Flux.fromIterable(this.upstreamUrls)
+            .flatMap(url -> Flux.range(0, this.upstreamConnections)
+                .flatMap(i -> send(this.webClient.method(HttpMethod.HEAD).uri(url))))
+            .thenMany(Flux.range(0, this.requests)
+                .flatMap(i -> send(this.webClient.get()
+                    .uri("http://127.0.0.1:{port}/", port)
+                    .header(FORWARDED_URL, String.format("http://127.0.0.1:%d%s", port, TARGET_PATH))
+                    .header(FORWARDED_FOR, "127.0.0.1")
+                    .header(PROXY_METADATA, "warmup")
+                    .header(PROXY_SIGNATURE, "warmup")
+                    .header(WARMUP_TOKEN, this.token)), this.concurrency))
+            .then()
+            .timeout(this.timeout)
+            .doOnError(error -> this.logger.warn("Warm-up did not complete: {}", error.toString()))
+            .onErrorResume(error -> Mono.empty())
+            .doOnTerminate(() -> onReady(event))
+            .subscribe();
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static ByteBuffer targetBody(int size) {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) 'w');
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private Mono<Void> send(WebClient.RequestHeadersSpec<?> request) {
+        return request.exchange()
+            .flatMapMany(response -> {
+                if (response.statusCode().isError()) {
+                    this.failures.incrementAndGet();
+                }
+                return response.bodyToFlux(DataBuffer.class);
+            })
+            .doOnNext(DataBufferUtils::release)
+            .doOnError(error -> this.failures.incrementAndGet())
+            .onErrorResume(error -> Flux.<DataBuffer>empty())
+            .then();
+    }
+
+    private void onReady(ReactiveWebServerInitializedEvent event) {
+        this.readyAt = ManagementFactory.getRuntimeMXBean().getUptime();
+        this.ready = true;
+        this.logger.info("Warmed up in {} ms, ready {} ms after JVM start ({} failed requests)",
+            this.readyAt - this.startedAt, this.readyAt, this.failures.get());
+
+        if (this.exit) {
+            Thread exit = new Thread(() -> System.exit(SpringApplication.exit(event.getApplicationContext())), "warmup-exit");
+            exit.start();
+        }
+    }
+
+}
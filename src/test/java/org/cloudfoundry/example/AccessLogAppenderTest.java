@@ -0,0 +1,90 @@
+package org.cloudfoundry.example;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class AccessLogAppenderTest {
+
+    private final LoggerContext context = new LoggerContext();
+
+    private final List<String> messages = new CopyOnWriteArrayList<>();
+
+    private final CountDownLatch received = new CountDownLatch(1);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Test
+    public void delivers() {
+        AccessLogAppender appender = appender(8);
+        this.release.countDown();
+
+        appender.doAppend(event("first"));
+        appender.doAppend(event("second"));
+        appender.stop();
+
+        assertThat(this.messages).containsExactly("first", "second");
+    }
+
+    @Test
+    public void dropsWhenFull() throws InterruptedException {
+        AccessLogAppender appender = appender(1);
+        long dropped = AccessLogAppender.getDropped();
+
+        appender.doAppend(event("first"));
+        assertThat(this.received.await(5, TimeUnit.SECONDS)).isTrue();
+        appender.doAppend(event("second"));
+        appender.doAppend(event("third"));
+
+        assertThat(AccessLogAppender.getDropped() - dropped).isEqualTo(1);
+
+        this.release.countDown();
+        appender.stop();
+
+        assertThat(this.messages).containsExactly("first", "second");
+    }
+
+    private AccessLogAppender appender(int queueSize) {
+        AppenderBase<ILoggingEvent> delegate = new AppenderBase<ILoggingEvent>() {
+
+            @Override
+            protected void append(ILoggingEvent event) {
+                AccessLogAppenderTest.this.messages.add(event.getMessage());
+                AccessLogAppenderTest.this.received.countDown();
+
+                try {
+                    AccessLogAppenderTest.this.release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+        };
+        delegate.setContext(this.context);
+        delegate.start();
+
+        AccessLogAppender appender = new AccessLogAppender();
+        appender.setContext(this.context);
+        appender.setName("test");
+        appender.setQueueSize(queueSize);
+        appender.addAppender(delegate);
+        appender.start();
+
+        return appender;
+    }
+
+    private LoggingEvent event(String message) {
+        return new LoggingEvent(AccessLogAppenderTest.class.getName(), this.context.getLogger("test"), Level.INFO, message, null, null);
+    }
+
+}
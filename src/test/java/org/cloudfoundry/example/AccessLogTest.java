@@ -0,0 +1,95 @@
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class AccessLogTest {
+
+    @Test
+    public void format() {
+        AccessLog.Entry entry = new AccessLog(new SimpleMeterRegistry(), 1.0, false)
+            .start(HttpMethod.GET, "http://app.example.com/path", " 1.1.1.1 , 2.2.2.2", headers("request"));
+
+        entry.response(HttpStatus.OK, headers("response"));
+        entry.body(buffer("test"));
+        entry.body(buffer("-body"));
+
+        assertThat(format(entry))
+            .matches("method=GET target=http://app\\.example\\.com/path status=200 bytes=9 duration_ms=\\d+\\.\\d{3} upstream_ms=- client=1\\.1\\.1\\.1");
+    }
+
+    @Test
+    public void formatUpstream() {
+        AccessLog.Entry entry = new AccessLog(new SimpleMeterRegistry(), 1.0, false)
+            .start(HttpMethod.POST, "http://app.example.com/", "", headers("request"));
+
+        entry.forwarded();
+        entry.upstreamResponded();
+        entry.response(HttpStatus.CREATED, headers("response"));
+
+        assertThat(format(entry))
+            .matches("method=POST target=http://app\\.example\\.com/ status=201 bytes=0 duration_ms=\\d+\\.\\d{3} upstream_ms=\\d+\\.\\d{3} client=-");
+    }
+
+    @Test
+    public void headers() {
+        AccessLog.Entry entry = new AccessLog(new SimpleMeterRegistry(), 1.0, true)
+            .start(HttpMethod.GET, "http://app.example.com/", "1.1.1.1", headers("request"));
+
+        entry.response(HttpStatus.OK, headers("response"));
+
+        assertThat(format(entry)).endsWith(" request_headers={X-Test=[request]} response_headers={X-Test=[response]}");
+    }
+
+    @Test
+    public void sampled() {
+        AccessLog accessLog = new AccessLog(new SimpleMeterRegistry(), 1.0, false);
+
+        assertThat(start(accessLog)).isNotSameAs(start(accessLog));
+    }
+
+    @Test
+    public void notSampled() {
+        AccessLog accessLog = new AccessLog(new SimpleMeterRegistry(), 0.0, false);
+
+        AccessLog.Entry entry = start(accessLog);
+        entry.forwarded();
+        entry.upstreamResponded();
+        entry.response(HttpStatus.OK, headers("response"));
+        entry.body(buffer("test-body"));
+        entry.failed(new IllegalStateException("test-error"));
+        entry.complete();
+
+        assertThat(start(accessLog)).isSameAs(entry);
+    }
+
+    private static AccessLog.Entry start(AccessLog accessLog) {
+        return accessLog.start(HttpMethod.GET, "http://app.example.com/", "1.1.1.1", headers("request"));
+    }
+
+    private static String format(AccessLog.Entry entry) {
+        StringBuilder buffer = new StringBuilder();
+        AccessLog.format(entry, buffer);
+        return buffer.toString();
+    }
+
+    private static HttpHeaders headers(String value) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set("X-Test", value);
+        return headers;
+    }
+
+    private static DataBuffer buffer(String value) {
+        return new DefaultDataBufferFactory().wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
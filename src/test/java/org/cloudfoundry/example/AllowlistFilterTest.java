@@ -0,0 +1,158 @@
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.cloudfoundry.example.Controller.FORWARDED_FOR;
+import static org.cloudfoundry.example.Controller.FORWARDED_URL;
+
+public final class AllowlistFilterTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final AllowlistFilter allowlistFilter = new AllowlistFilter(new Policies(this.meterRegistry, "5.5.5.5", ""),
+        new AccessLog(this.meterRegistry, 0, false), new ProxyMetrics(this.meterRegistry, new double[0], false, 10),
+        new Warmup(this.meterRegistry, WebClient.create(), 0, 1, "", 1, 1000, false), 16);
+
+    private final AtomicBoolean chained = new AtomicBoolean();
+
+    private final WebFilterChain chain = exchange -> {
+        this.chained.set(true);
+        return Mono.empty();
+    };
+
+    @Test
+    public void allowed() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/")
+            .header(FORWARDED_URL, "http://app.example.com/")
+            .header(FORWARDED_FOR, "1.1.1.1, 5.5.5.5"));
+
+        this.allowlistFilter.filter(exchange, this.chain).block();
+
+        assertThat(this.chained).isTrue();
+        assertThat(exchange.getResponse().getStatusCode()).isNull();
+        assertThat(allowlist("allowed")).isEqualTo(1);
+    }
+
+    @Test
+    public void notRouteServiceRequest() {
+        this.allowlistFilter.filter(MockServerWebExchange.from(MockServerHttpRequest.get("/actuator/health")), this.chain).block();
+
+        assertThat(this.chained).isTrue();
+        assertThat(allowlist("allowed")).isEqualTo(0);
+        assertThat(allowlist("denied")).isEqualTo(0);
+    }
+
+    @Test
+    public void denied() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/")
+            .header(FORWARDED_URL, "http://app.example.com/")
+            .header(FORWARDED_FOR, "1.1.1.1"));
+
+        this.allowlistFilter.filter(exchange, this.chain).block();
+
+        assertThat(this.chained).isFalse();
+        assertThat(exchange.getResponse().getStatusCode()).isEqualTo(HttpStatus.FORBIDDEN);
+        assertThat(exchange.getResponse().getHeaders().getContentLength()).isEqualTo(22);
+        assertThat(exchange.getResponse().getHeaders().getConnection()).isEmpty();
+        assertThat(body(exchange)).isEqualTo("Access is not allowed!");
+        assertThat(body(deny())).isEqualTo("Access is not allowed!");
+        assertThat(allowlist("denied")).isEqualTo(2);
+    }
+
+    @Test
+    public void deniedWithoutForwardedFor() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/")
+            .header(FORWARDED_URL, "http://app.example.com/"));
+
+        this.allowlistFilter.filter(exchange, this.chain).block();
+
+        assertThat(this.chained).isFalse();
+        assertThat(exchange.getResponse().getStatusCode()).isEqualTo(HttpStatus.FORBIDDEN);
+    }
+
+    @Test
+    public void drainsSmallBody() {
+        AtomicBoolean drained = new AtomicBoolean();
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/")
+            .header(FORWARDED_URL, "http://app.example.com/")
+            .header(FORWARDED_FOR, "1.1.1.1")
+            .contentLength(9)
+            .body(Flux.just(buffer("test-body")).doOnComplete(() -> drained.set(true))));
+
+        this.allowlistFilter.filter(exchange, this.chain).block();
+
+        assertThat(drained).isTrue();
+        assertThat(exchange.getResponse().getHeaders().getConnection()).isEmpty();
+    }
+
+    @Test
+    public void closesOnLargeBody() {
+        AtomicBoolean subscribed = new AtomicBoolean();
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/")
+            .header(FORWARDED_URL, "http://app.example.com/")
+            .header(FORWARDED_FOR, "1.1.1.1")
+            .contentLength(17)
+            .body(Flux.just(buffer("test-large-body-!")).doOnSubscribe(subscription -> subscribed.set(true))));
+
+        this.allowlistFilter.filter(exchange, this.chain).block();
+
+        assertThat(subscribed).isFalse();
+        assertThat(exchange.getResponse().getStatusCode()).isEqualTo(HttpStatus.FORBIDDEN);
+        assertThat(exchange.getResponse().getHeaders().getConnection()).containsExactly("close");
+    }
+
+    @Test
+    public void closesOnChunkedBody() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/")
+            .header(FORWARDED_URL, "http://app.example.com/")
+            .header(FORWARDED_FOR, "1.1.1.1")
+            .header(HttpHeaders.TRANSFER_ENCODING, "chunked")
+            .body(Flux.just(buffer("test-body"))));
+
+        this.allowlistFilter.filter(exchange, this.chain).block();
+
+        assertThat(exchange.getResponse().getHeaders().getConnection()).containsExactly("close");
+    }
+
+    private MockServerWebExchange deny() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/")
+            .header(FORWARDED_URL, "http://app.example.com/")
+            .header(FORWARDED_FOR, "1.1.1.1"));
+
+        this.allowlistFilter.filter(exchange, this.chain).block();
+        return exchange;
+    }
+
+    private double allowlist(String result) {
+        return this.meterRegistry.get("proxy.allowlist").tag("result", result).counter().count();
+    }
+
+    private String body(MockServerWebExchange exchange) {
+        return exchange.getResponse().getBody()
+            .map(buffer -> StandardCharsets.UTF_8.decode(buffer.asByteBuffer()).toString())
+            .collect(StringBuilder::new, StringBuilder::append)
+            .map(StringBuilder::toString)
+            .block();
+    }
+
+    private DataBuffer buffer(String value) {
+        return new DefaultDataBufferFactory().wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
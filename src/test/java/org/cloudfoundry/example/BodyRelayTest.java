@@ -0,0 +1,120 @@
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.Test;
+import org.reactivestreams.Subscription;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBuffer;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public final class BodyRelayTest {
+
+    private final NettyDataBufferFactory dataBufferFactory = new NettyDataBufferFactory(new UnpooledByteBufAllocator(false));
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    public void relay() {
+        BodyRelay bodyRelay = new BodyRelay(this.meterRegistry, 0, 0, 2, 1024, 256);
+
+        List<DataBuffer> buffers = bodyRelay.response(Flux.range(0, 10).map(i -> buffer("test-body"))).collectList().block();
+
+        assertThat(buffers).hasSize(10);
+        assertThat(buffered("response")).isZero();
+        buffers.forEach(DataBufferUtils::release);
+    }
+
+    @Test
+    public void tooLarge() {
+        BodyRelay bodyRelay = new BodyRelay(this.meterRegistry, 16, 0, 2, 1024, 256);
+        List<NettyDataBuffer> sent = new ArrayList<>();
+
+        assertThat(bodyRelay.isRequestTooLarge(17)).isTrue();
+        assertThat(bodyRelay.isRequestTooLarge(16)).isFalse();
+        assertThat(bodyRelay.isResponseTooLarge(Long.MAX_VALUE)).isFalse();
+
+        assertThatThrownBy(() -> bodyRelay.request(Flux.range(0, 3).map(i -> buffer("test-body")).doOnNext(sent::add))
+            .doOnNext(DataBufferUtils::release)
+            .blockLast())
+            .matches(BodyRelay::isTooLarge);
+
+        assertThat(sent).allMatch(buffer -> buffer.getNativeBuffer().refCnt() == 0);
+        assertThat(buffered("request")).isZero();
+    }
+
+    @Test
+    public void cancel() {
+        BodyRelay bodyRelay = new BodyRelay(this.meterRegistry, 0, 0, 4, 1024, 256);
+        List<NettyDataBuffer> sent = new ArrayList<>();
+
+        BaseSubscriber<DataBuffer> subscriber = new BaseSubscriber<DataBuffer>() {
+
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+            }
+
+        };
+        bodyRelay.response(Flux.range(0, 10).map(i -> buffer("test-body")).doOnNext(sent::add)).subscribe(subscriber);
+
+        assertThat(sent).hasSize(4);
+        assertThat(buffered("response")).isEqualTo(36);
+
+        subscriber.dispose();
+
+        assertThat(sent).allMatch(buffer -> buffer.getNativeBuffer().refCnt() == 0);
+        assertThat(buffered("response")).isZero();
+    }
+
+    @Test
+    public void watermarks() {
+        BodyRelay bodyRelay = new BodyRelay(this.meterRegistry, 0, 0, 4, 20, 10);
+        List<NettyDataBuffer> sent = new ArrayList<>();
+
+        BaseSubscriber<DataBuffer> subscriber = new BaseSubscriber<DataBuffer>() {
+
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+            }
+
+            @Override
+            protected void hookOnNext(DataBuffer value) {
+                DataBufferUtils.release(value);
+            }
+
+        };
+        bodyRelay.response(Flux.range(0, 100).map(i -> buffer("test-body")).doOnNext(sent::add)).subscribe(subscriber);
+        assertThat(sent).hasSize(4);
+
+        subscriber.request(2);
+        assertThat(sent).hasSize(4);
+        assertThat(buffered("response")).isEqualTo(18);
+
+        subscriber.request(1);
+        assertThat(sent).hasSize(7);
+        assertThat(buffered("response")).isEqualTo(36);
+
+        subscriber.dispose();
+        assertThat(sent).allMatch(buffer -> buffer.getNativeBuffer().refCnt() == 0);
+    }
+
+    private NettyDataBuffer buffer(String value) {
+        return this.dataBufferFactory.wrap(this.dataBufferFactory.getByteBufAllocator().buffer().writeBytes(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private double buffered(String direction) {
+        return this.meterRegistry.get("proxy.relay.buffered").tag("direction", direction).gauge().value();
+    }
+
+}
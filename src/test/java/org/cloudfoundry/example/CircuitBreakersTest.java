@@ -0,0 +1,114 @@
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class CircuitBreakersTest {
+
+    private static final long LATER = TimeUnit.SECONDS.toNanos(2);
+
+    @Test
+    public void disabled() {
+        CircuitBreakers circuitBreakers = new CircuitBreakers(new SimpleMeterRegistry(), 0, 4, 50, false, 100, 0, 1_000, 2, 100);
+
+        for (int i = 0; i < 100; i++) {
+            circuitBreakers.acquire("host").onError();
+        }
+
+        assertThat(circuitBreakers.acquire("host")).isSameAs(CircuitBreakers.Permit.NONE);
+    }
+
+    @Test
+    public void opensOnFailureRate() {
+        CircuitBreakers circuitBreakers = new CircuitBreakers(new SimpleMeterRegistry(), 10, 4, 50, true, 100, 0, 1_000, 2, 100);
+
+        circuitBreakers.acquire("host").onResponse(200);
+        circuitBreakers.acquire("host").onResponse(404);
+        circuitBreakers.acquire("host").onError();
+        assertThat(circuitBreakers.acquire("host")).isNotNull();
+
+        circuitBreakers.acquire("host").onResponse(503);
+
+        assertThat(circuitBreakers.acquire("host")).isNull();
+        assertThat(circuitBreakers.getRetryAfter("host", System.nanoTime())).isPositive();
+        assertThat(circuitBreakers.acquire("other-host")).isNotNull();
+    }
+
+    @Test
+    public void serverErrorsIgnoredByDefault() {
+        CircuitBreakers circuitBreakers = new CircuitBreakers(new SimpleMeterRegistry(), 10, 4, 50, false, 100, 0, 1_000, 2, 100);
+
+        for (int i = 0; i < 10; i++) {
+            circuitBreakers.acquire("host").onResponse(503);
+        }
+        assertThat(circuitBreakers.acquire("host")).isNotNull();
+
+        for (int i = 0; i < 5; i++) {
+            circuitBreakers.acquire("host").onError();
+        }
+        assertThat(circuitBreakers.acquire("host")).isNull();
+    }
+
+    @Test
+    public void opensOnSlowCallRate() {
+        CircuitBreakers circuitBreakers = new CircuitBreakers(new SimpleMeterRegistry(), 10, 4, 100, false, 50, 100, 1_000, 2, 100);
+        long now = System.nanoTime();
+
+        circuitBreakers.acquire("host", now).onResponse(200, now + TimeUnit.MILLISECONDS.toNanos(10));
+        circuitBreakers.acquire("host", now).onResponse(200, now + TimeUnit.MILLISECONDS.toNanos(10));
+        circuitBreakers.acquire("host", now).onResponse(200, now + TimeUnit.MILLISECONDS.toNanos(200));
+        circuitBreakers.acquire("host", now).onResponse(200, now + TimeUnit.MILLISECONDS.toNanos(200));
+
+        assertThat(circuitBreakers.acquire("host")).isNull();
+    }
+
+    @Test
+    public void halfOpenProbesClose() {
+        CircuitBreakers circuitBreakers = open();
+        long later = System.nanoTime() + LATER;
+
+        CircuitBreakers.Permit first = circuitBreakers.acquire("host", later);
+        CircuitBreakers.Permit second = circuitBreakers.acquire("host", later);
+        assertThat(first).isNotNull();
+        assertThat(second).isNotNull();
+        assertThat(circuitBreakers.acquire("host", later)).isNull();
+
+        first.onResponse(200);
+        second.onResponse(200);
+
+        for (int i = 0; i < 3; i++) {
+            circuitBreakers.acquire("host", later).onError();
+        }
+        assertThat(circuitBreakers.acquire("host", later)).isNotNull();
+    }
+
+    @Test
+    public void halfOpenProbeFailureReopens() {
+        CircuitBreakers circuitBreakers = open();
+        long later = System.nanoTime() + LATER;
+
+        CircuitBreakers.Permit cancelled = circuitBreakers.acquire("host", later);
+        CircuitBreakers.Permit failed = circuitBreakers.acquire("host", later);
+        cancelled.onCancel();
+        assertThat(circuitBreakers.acquire("host", later)).isNotNull();
+
+        failed.onError();
+        assertThat(circuitBreakers.acquire("host")).isNull();
+    }
+
+    private static CircuitBreakers open() {
+        CircuitBreakers circuitBreakers = new CircuitBreakers(new SimpleMeterRegistry(), 10, 4, 50, false, 100, 0, 1_000, 2, 100);
+
+        for (int i = 0; i < 4; i++) {
+            circuitBreakers.acquire("host").onError();
+        }
+        assertThat(circuitBreakers.acquire("host")).isNull();
+
+        return circuitBreakers;
+    }
+
+}
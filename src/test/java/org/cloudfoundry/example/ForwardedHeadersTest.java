@@ -0,0 +1,82 @@
+package org.cloudfoundry.example;
+
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpRequestDecorator;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+
+import java.net.InetSocketAddress;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.cloudfoundry.example.Controller.FORWARDED_FOR;
+import static org.cloudfoundry.example.Controller.FORWARDED_URL;
+import static org.cloudfoundry.example.Controller.PROXY_SIGNATURE;
+import static org.springframework.http.HttpHeaders.CONNECTION;
+import static org.springframework.http.HttpHeaders.CONTENT_TYPE;
+import static org.springframework.http.HttpHeaders.COOKIE;
+import static org.springframework.http.HttpHeaders.HOST;
+import static org.springframework.http.HttpHeaders.TRANSFER_ENCODING;
+
+public final class ForwardedHeadersTest {
+
+    @Test
+    public void requestHeaders() {
+        ServerHttpRequest request = MockServerHttpRequest.get("http://localhost/")
+            .header(HOST, "route-service.example.com")
+            .header("x-cf-forwarded-url", "http://app.example.com/")
+            .header(PROXY_SIGNATURE, "test-proxy-signature")
+            .header(COOKIE, "a=1", "b=2")
+            .header(CONNECTION, "keep-alive, X-Private")
+            .header("X-Private", "test-private")
+            .header("Keep-Alive", "timeout=5")
+            .header(FORWARDED_FOR, "1.1.1.1")
+            .build();
+
+        HttpHeaders headers = new HttpHeaders();
+        new ForwardedHeaders(false).copyRequestHeaders(request, headers);
+
+        assertThat(headers.containsKey(FORWARDED_URL)).isFalse();
+        assertThat(headers.containsKey(HOST)).isFalse();
+        assertThat(headers.containsKey(CONNECTION)).isFalse();
+        assertThat(headers.containsKey("Keep-Alive")).isFalse();
+        assertThat(headers.containsKey("X-Private")).isFalse();
+        assertThat(headers.getFirst(PROXY_SIGNATURE)).isEqualTo("test-proxy-signature");
+        assertThat(headers.get(COOKIE)).containsExactly("a=1", "b=2");
+        assertThat(headers.getFirst(FORWARDED_FOR)).isEqualTo("1.1.1.1");
+    }
+
+    @Test
+    public void appendForwardedFor() {
+        ServerHttpRequest request = new ServerHttpRequestDecorator(MockServerHttpRequest.get("http://localhost/")
+            .header(FORWARDED_FOR, "1.1.1.1, 2.2.2.2")
+            .build()) {
+
+            @Override
+            public InetSocketAddress getRemoteAddress() {
+                return new InetSocketAddress("10.0.0.1", 12345);
+            }
+
+        };
+
+        HttpHeaders headers = new HttpHeaders();
+        new ForwardedHeaders(true).copyRequestHeaders(request, headers);
+
+        assertThat(headers.get(FORWARDED_FOR)).containsExactly("1.1.1.1, 2.2.2.2, 10.0.0.1");
+    }
+
+    @Test
+    public void responseHeaders() {
+        HttpHeaders upstreamHeaders = new HttpHeaders();
+        upstreamHeaders.set(CONTENT_TYPE, "text/plain");
+        upstreamHeaders.set(TRANSFER_ENCODING, "chunked");
+        upstreamHeaders.set("connection", "close");
+
+        HttpHeaders headers = ForwardedHeaders.getResponseHeaders(upstreamHeaders);
+
+        assertThat(headers.keySet()).containsExactly(CONTENT_TYPE);
+        assertThat(ForwardedHeaders.isHopByHop("Transfer-Encoding")).isTrue();
+        assertThat(ForwardedHeaders.isHopByHop("Content-Length")).isFalse();
+    }
+
+}
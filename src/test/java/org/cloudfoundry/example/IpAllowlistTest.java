@@ -0,0 +1,102 @@
+package org.cloudfoundry.example;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public final class IpAllowlistTest {
+
+    @Test
+    public void empty() {
+        IpAllowlist allowlist = IpAllowlist.parse("");
+
+        assertThat(allowlist.size()).isZero();
+        assertThat(allowlist.matchesAny("5.5.5.5")).isFalse();
+        assertThat(allowlist.matchesAny("")).isFalse();
+    }
+
+    @Test
+    public void ipv4Addresses() {
+        IpAllowlist allowlist = IpAllowlist.parse(" 1.2.3.4,  5.6.7.8 ");
+
+        assertThat(allowlist.size()).isEqualTo(2);
+        assertThat(allowlist.matchesAny("1.2.3.4")).isTrue();
+        assertThat(allowlist.matchesAny("123.456.789.123, 5.6.7.8, 127.0.0.1")).isTrue();
+        assertThat(allowlist.matchesAny("1.2.3.5, 5.6.7.9")).isFalse();
+    }
+
+    @Test
+    public void ipv4Ranges() {
+        IpAllowlist allowlist = IpAllowlist.parse("10.0.0.0/8 192.168.1.0/24, 192.168.0.0/23");
+
+        assertThat(allowlist.matchesAny("10.255.255.255")).isTrue();
+        assertThat(allowlist.matchesAny("11.0.0.0")).isFalse();
+        assertThat(allowlist.matchesAny("192.168.0.1")).isTrue();
+        assertThat(allowlist.matchesAny("192.168.1.255")).isTrue();
+        assertThat(allowlist.matchesAny("192.168.2.0")).isFalse();
+    }
+
+    @Test
+    public void ipv4AllAddresses() {
+        IpAllowlist allowlist = IpAllowlist.parse("0.0.0.0/0");
+
+        assertThat(allowlist.matchesAny("0.0.0.0")).isTrue();
+        assertThat(allowlist.matchesAny("255.255.255.255")).isTrue();
+        assertThat(allowlist.matchesAny("::1")).isFalse();
+    }
+
+    @Test
+    public void ipv6Addresses() {
+        IpAllowlist allowlist = IpAllowlist.parse("2001:db8::1, ::1, fe80:0:0:0:0:0:0:abcd");
+
+        assertThat(allowlist.matchesAny("2001:DB8:0:0:0:0:0:1")).isTrue();
+        assertThat(allowlist.matchesAny("0:0:0:0:0:0:0:1")).isTrue();
+        assertThat(allowlist.matchesAny("fe80::abcd")).isTrue();
+        assertThat(allowlist.matchesAny("2001:db8::2")).isFalse();
+    }
+
+    @Test
+    public void ipv6Ranges() {
+        IpAllowlist allowlist = IpAllowlist.parse("2001:db8::/32, fd00::/8");
+
+        assertThat(allowlist.matchesAny("2001:db8:ffff:ffff:ffff:ffff:ffff:ffff")).isTrue();
+        assertThat(allowlist.matchesAny("2001:db9::")).isFalse();
+        assertThat(allowlist.matchesAny("fdff::1")).isTrue();
+        assertThat(allowlist.matchesAny("fe00::1")).isFalse();
+    }
+
+    @Test
+    public void ipv4MappedIpv6() {
+        IpAllowlist allowlist = IpAllowlist.parse("5.5.5.0/24, ::ffff:6.6.6.6");
+
+        assertThat(allowlist.matchesAny("::ffff:5.5.5.5")).isTrue();
+        assertThat(allowlist.matchesAny("::ffff:0505:0506")).isTrue();
+        assertThat(allowlist.matchesAny("6.6.6.6")).isTrue();
+    }
+
+    @Test
+    public void malformedForwardedAddresses() {
+        IpAllowlist allowlist = IpAllowlist.parse("5.5.5.5, 2001:db8::1");
+
+        assertThat(allowlist.matchesAny("5.5.5")).isFalse();
+        assertThat(allowlist.matchesAny("5.5.5.5.5")).isFalse();
+        assertThat(allowlist.matchesAny("5.5.5.256")).isFalse();
+        assertThat(allowlist.matchesAny("2001:db8:::1")).isFalse();
+        assertThat(allowlist.matchesAny("2001:db8::1::")).isFalse();
+        assertThat(allowlist.matchesAny("2001:db8::1%eth0")).isFalse();
+        assertThat(allowlist.matchesAny(",, ,garbage, 5.5.5.5")).isTrue();
+    }
+
+    @Test
+    public void invalidEntry() {
+        assertThatThrownBy(() -> IpAllowlist.parse("1.2.3.4, not-an-address"))
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining("not-an-address");
+        assertThatThrownBy(() -> IpAllowlist.parse("10.0.0.0/33"))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> IpAllowlist.parse("::/129"))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+}
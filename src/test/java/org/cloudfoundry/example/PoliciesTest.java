@@ -0,0 +1,124 @@
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public final class PoliciesTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    public void validIps() {
+        Policies policies = new Policies(this.meterRegistry, "1.2.3.4", "");
+
+        assertThat(policies.get().getSource()).isEqualTo("VALID_IPS");
+        assertThat(policies.get().getAllowlist("app.example.com").matchesAny("1.2.3.4")).isTrue();
+        assertThat(policies.get().getHostAllowlists()).isEmpty();
+    }
+
+    @Test
+    public void file() throws IOException {
+        File file = write("policy", "# comment\nvalid-ips = 1.2.3.4\nAdmin.Example.com = 10.0.0.0/8, 2001:db8::/32\n");
+        Policies policies = new Policies(this.meterRegistry, "5.6.7.8", file.getPath());
+
+        Policy policy = policies.get();
+        assertThat(policy.getAllowlist("app.example.com").matchesAny("1.2.3.4")).isTrue();
+        assertThat(policy.getAllowlist("admin.example.com").matchesAny("1.2.3.4")).isFalse();
+        assertThat(policy.getAllowlist("ADMIN.example.com").matchesAny("10.1.2.3")).isTrue();
+        assertThat(policy.getAllowlist("admin.example.com").matchesAny("2001:db8::1")).isTrue();
+    }
+
+    @Test
+    public void fileWithoutValidIps() throws IOException {
+        File file = write("policy", "admin.example.com:8443 = 10.0.0.0/8");
+        Policies policies = new Policies(this.meterRegistry, "5.6.7.8", file.getPath());
+
+        assertThat(policies.get().getAllowlist("app.example.com").matchesAny("5.6.7.8")).isTrue();
+        assertThat(policies.get().getAllowlist("admin.example.com:8443").matchesAny("5.6.7.8")).isFalse();
+    }
+
+    @Test
+    public void update() {
+        Policies policies = new Policies(this.meterRegistry, "1.2.3.4", "");
+        long version = policies.get().getVersion();
+
+        Policy policy = policies.update("valid-ips = 5.6.7.8; admin.example.com = 10.0.0.0/8");
+
+        assertThat(policies.get()).isSameAs(policy);
+        assertThat(policy.getVersion()).isGreaterThan(version);
+        assertThat(policy.getSource()).isEqualTo("endpoint");
+        assertThat(policy.getAllowlist("app.example.com").matchesAny("1.2.3.4")).isFalse();
+        assertThat(policy.getAllowlist("app.example.com").matchesAny("5.6.7.8")).isTrue();
+        assertThat(policy.getAllowlist("admin.example.com").matchesAny("10.0.0.1")).isTrue();
+        assertThat(reloads("success")).isEqualTo(1);
+    }
+
+    @Test
+    public void invalidUpdate() {
+        Policies policies = new Policies(this.meterRegistry, "1.2.3.4", "");
+        Policy policy = policies.get();
+
+        assertThatThrownBy(() -> policies.update("valid-ips = 1.2.3.4/33")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> policies.update("admin.example.com")).isInstanceOf(IllegalArgumentException.class);
+
+        assertThat(policies.get()).isSameAs(policy);
+        assertThat(reloads("failure")).isEqualTo(2);
+    }
+
+    @Test
+    public void reload() throws IOException {
+        File file = write("policy", "valid-ips = 1.2.3.4");
+        Policies policies = new Policies(this.meterRegistry, "", file.getPath());
+
+        write("policy", "valid-ips = 5.6.7.8");
+        Policy policy = policies.reload();
+
+        assertThat(policies.get()).isSameAs(policy);
+        assertThat(policy.getAllowlist("app.example.com").matchesAny("5.6.7.8")).isTrue();
+        assertThat(this.meterRegistry.get("policy.version").gauge().value()).isEqualTo(policy.getVersion());
+    }
+
+    @Test
+    public void watch() throws IOException, InterruptedException {
+        File file = write("policy", "valid-ips = 1.2.3.4");
+        Policies policies = new Policies(this.meterRegistry, "", file.getPath());
+        policies.start();
+
+        try {
+            write("policy", "valid-ips = 5.6.7.8");
+
+            for (int i = 0; i < 300 && !policies.get().getAllowlist("app.example.com").matchesAny("5.6.7.8"); i++) {
+                Thread.sleep(100);
+            }
+
+            assertThat(policies.get().getAllowlist("app.example.com").matchesAny("5.6.7.8")).isTrue();
+        } finally {
+            policies.stop();
+        }
+    }
+
+    private double reloads(String result) {
+        return this.meterRegistry.get("policy.reloads").tag("result", result).counter().count();
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(this.folder.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+}
@@ -0,0 +1,73 @@
+package org.cloudfoundry.example;
+
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public final class PolicyEndpointFilterTest {
+
+    private final PolicyEndpointFilter policyEndpointFilter = new PolicyEndpointFilter("/actuator", "test-token");
+
+    private final AtomicBoolean chained = new AtomicBoolean();
+
+    private final WebFilterChain chain = exchange -> {
+        this.chained.set(true);
+        return Mono.empty();
+    };
+
+    @Test
+    public void authorized() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/actuator/policy")
+            .header(HttpHeaders.AUTHORIZATION, "Bearer test-token"));
+
+        this.policyEndpointFilter.filter(exchange, this.chain).block();
+
+        assertThat(this.chained).isTrue();
+        assertThat(exchange.getResponse().getStatusCode()).isNull();
+    }
+
+    @Test
+    public void missingToken() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.post("/actuator/policy"));
+
+        this.policyEndpointFilter.filter(exchange, this.chain).block();
+
+        assertThat(this.chained).isFalse();
+        assertThat(exchange.getResponse().getStatusCode()).isEqualTo(HttpStatus.UNAUTHORIZED);
+        assertThat(exchange.getResponse().getHeaders().getFirst(HttpHeaders.WWW_AUTHENTICATE)).isEqualTo("Bearer");
+    }
+
+    @Test
+    public void wrongToken() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/actuator/policy/")
+            .header(HttpHeaders.AUTHORIZATION, "Bearer test-token-2"));
+
+        this.policyEndpointFilter.filter(exchange, this.chain).block();
+
+        assertThat(this.chained).isFalse();
+        assertThat(exchange.getResponse().getStatusCode()).isEqualTo(HttpStatus.UNAUTHORIZED);
+    }
+
+    @Test
+    public void otherPath() {
+        this.policyEndpointFilter.filter(MockServerWebExchange.from(MockServerHttpRequest.get("/actuator/health")), this.chain).block();
+
+        assertThat(this.chained).isTrue();
+    }
+
+    @Test
+    public void tokenRequired() {
+        assertThatThrownBy(() -> new PolicyEndpointFilter("/actuator", " "))
+            .isInstanceOf(IllegalStateException.class);
+    }
+
+}
@@ -0,0 +1,74 @@
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class ProxyMetricsTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final ProxyMetrics proxyMetrics = new ProxyMetrics(this.meterRegistry, new double[]{0.5, 0.99}, false, 2);
+
+    @Test
+    public void exchange() {
+        ProxyMetrics.Exchange exchange = this.proxyMetrics.start("host-a");
+        assertThat(this.meterRegistry.get("proxy.active").gauge().value()).isEqualTo(1);
+
+        exchange.requestBody(new DefaultDataBufferFactory().wrap("request".getBytes(StandardCharsets.UTF_8)));
+        exchange.response(HttpStatus.CREATED);
+        exchange.responseBody(new DefaultDataBufferFactory().wrap("response-body".getBytes(StandardCharsets.UTF_8)));
+        exchange.complete();
+        exchange.complete();
+
+        assertThat(this.meterRegistry.get("proxy.active").gauge().value()).isEqualTo(0);
+        assertThat(this.meterRegistry.get("proxy.request.bytes").tag("host", "host-a").counter().count()).isEqualTo(7);
+        assertThat(this.meterRegistry.get("proxy.response.bytes").tag("host", "host-a").counter().count()).isEqualTo(13);
+        assertThat(this.meterRegistry.get("proxy.requests").tags("host", "host-a", "status", "2xx").timer().count()).isEqualTo(1);
+        assertThat(this.meterRegistry.get("proxy.first.byte").tags("host", "host-a", "status", "2xx").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    public void failedAndCancelled() {
+        this.proxyMetrics.start("host-a").failed();
+
+        ProxyMetrics.Exchange responded = this.proxyMetrics.start("host-a");
+        responded.response(HttpStatus.OK);
+        responded.cancelled();
+        assertThat(this.meterRegistry.get("proxy.active").gauge().value()).isEqualTo(1);
+
+        this.proxyMetrics.start("host-a").cancelled();
+
+        assertThat(this.meterRegistry.get("proxy.requests").tags("host", "host-a", "status", "5xx").timer().count()).isEqualTo(1);
+        assertThat(this.meterRegistry.get("proxy.requests").tags("host", "host-a", "status", "cancelled").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    public void maxHosts() {
+        this.proxyMetrics.start("host-a").complete();
+        this.proxyMetrics.start("host-b").complete();
+        this.proxyMetrics.start("host-c").complete();
+        this.proxyMetrics.start("host-a").complete();
+
+        assertThat(this.meterRegistry.get("proxy.requests").tag("host", "host-a").timer().count()).isEqualTo(2);
+        assertThat(this.meterRegistry.get("proxy.requests").tag("host", "other").timer().count()).isEqualTo(1);
+        assertThat(this.meterRegistry.find("proxy.requests").tag("host", "host-c").timer()).isNull();
+    }
+
+    @Test
+    public void allowlist() {
+        this.proxyMetrics.allowlist(true);
+        this.proxyMetrics.allowlist(true);
+        this.proxyMetrics.allowlist(false);
+
+        assertThat(this.meterRegistry.get("proxy.allowlist").tag("result", "allowed").counter().count()).isEqualTo(2);
+        assertThat(this.meterRegistry.get("proxy.allowlist").tag("result", "denied").counter().count()).isEqualTo(1);
+    }
+
+}
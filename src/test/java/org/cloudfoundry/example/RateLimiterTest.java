@@ -0,0 +1,87 @@
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class RateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void disabled() {
+        RateLimiter rateLimiter = new RateLimiter(new SimpleMeterRegistry(), 0, 0, 1, 0, 0, 100, 60_000);
+
+        assertThat(rateLimiter.isClientLimited()).isFalse();
+        for (int i = 0; i < 1_000; i++) {
+            assertThat(rateLimiter.acquire(null, "host", 0)).isZero();
+        }
+    }
+
+    @Test
+    public void clientBurstAndRefill() {
+        RateLimiter rateLimiter = new RateLimiter(new SimpleMeterRegistry(), 10, 5, 1, 0, 0, 100, 60_000);
+
+        assertThat(rateLimiter.isClientLimited()).isTrue();
+        for (int i = 0; i < 5; i++) {
+            assertThat(rateLimiter.acquire("1.1.1.1", "host", 0)).isZero();
+        }
+
+        assertThat(rateLimiter.acquire("1.1.1.1", "host", 0)).isEqualTo(SECOND / 10);
+        assertThat(rateLimiter.acquire("2.2.2.2", "host", 0)).isZero();
+        assertThat(rateLimiter.acquire("1.1.1.1", "host", SECOND / 10)).isZero();
+        assertThat(rateLimiter.acquire("1.1.1.1", "host", SECOND / 10)).isPositive();
+    }
+
+    @Test
+    public void routeLimit() {
+        RateLimiter rateLimiter = new RateLimiter(new SimpleMeterRegistry(), 0, 0, 1, 2, 0, 100, 60_000);
+
+        assertThat(rateLimiter.acquire("1.1.1.1", "host-a", 0)).isZero();
+        assertThat(rateLimiter.acquire("2.2.2.2", "host-a", 0)).isZero();
+        assertThat(rateLimiter.acquire("3.3.3.3", "host-a", 0)).isEqualTo(SECOND / 2);
+        assertThat(rateLimiter.acquire("3.3.3.3", "host-b", 0)).isZero();
+        assertThat(rateLimiter.acquire("3.3.3.3", "host-a", SECOND)).isZero();
+    }
+
+    @Test
+    public void routeRejectionReturnsClientToken() {
+        RateLimiter rateLimiter = new RateLimiter(new SimpleMeterRegistry(), 1, 1, 1, 1, 1, 100, 60_000);
+
+        assertThat(rateLimiter.acquire("1.1.1.1", "host-a", 0)).isZero();
+        assertThat(rateLimiter.acquire("2.2.2.2", "host-a", 0)).isEqualTo(SECOND);
+        assertThat(rateLimiter.acquire("2.2.2.2", "host-b", 0)).isZero();
+    }
+
+    @Test
+    public void clientAddress() {
+        RateLimiter rateLimiter = new RateLimiter(new SimpleMeterRegistry(), 10, 5, 1, 0, 0, 100, 60_000);
+
+        assertThat(rateLimiter.getClientAddress("1.1.1.1")).isEqualTo("1.1.1.1");
+        assertThat(rateLimiter.getClientAddress(" 1.1.1.1 , 2.2.2.2 ")).isEqualTo("2.2.2.2");
+    }
+
+    @Test
+    public void clientAddressTrustedHops() {
+        RateLimiter rateLimiter = new RateLimiter(new SimpleMeterRegistry(), 10, 5, 2, 0, 0, 100, 60_000);
+
+        assertThat(rateLimiter.getClientAddress("1.1.1.1, 2.2.2.2, 3.3.3.3")).isEqualTo("2.2.2.2");
+        assertThat(rateLimiter.getClientAddress("2.2.2.2, 3.3.3.3")).isEqualTo("2.2.2.2");
+        assertThat(rateLimiter.getClientAddress("3.3.3.3")).isEqualTo("3.3.3.3");
+    }
+
+    @Test
+    public void spoofedClientAddress() {
+        RateLimiter rateLimiter = new RateLimiter(new SimpleMeterRegistry(), 10, 5, 1, 0, 0, 100, 60_000);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(rateLimiter.acquire(rateLimiter.getClientAddress(String.format("10.0.0.%d, 1.1.1.1", i)), "host", 0)).isZero();
+        }
+
+        assertThat(rateLimiter.acquire(rateLimiter.getClientAddress("10.0.0.99, 1.1.1.1"), "host", 0)).isPositive();
+    }
+
+}
@@ -0,0 +1,208 @@
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.cloudfoundry.example.Controller.FORWARDED_FOR;
+import static org.cloudfoundry.example.Controller.FORWARDED_URL;
+import static org.cloudfoundry.example.Controller.PROXY_METADATA;
+import static org.cloudfoundry.example.Controller.PROXY_SIGNATURE;
+import static org.springframework.http.HttpHeaders.CACHE_CONTROL;
+import static org.springframework.http.HttpHeaders.CONTENT_TYPE;
+import static org.springframework.http.HttpHeaders.ETAG;
+import static org.springframework.http.HttpHeaders.IF_NONE_MATCH;
+import static org.springframework.http.HttpStatus.NOT_MODIFIED;
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.MediaType.TEXT_PLAIN_VALUE;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@TestPropertySource(properties = {"VALID_IPS = 5.5.5.5", "RESPONSE_CACHE_MAX_SIZE = 1048576"})
+public final class ResponseCacheTest {
+
+    private static final String BODY_VALUE = "test-body";
+
+    private static final String ETAG_VALUE = "\"test-etag\"";
+
+    private static final String PROXY_METADATA_VALUE = "test-proxy-metadata";
+
+    private static final String PROXY_SIGNATURE_VALUE = "test-proxy-signature";
+
+    private static final String FORWARDED_FOR_VALUE = "5.5.5.5";
+
+    @Rule
+    public final MockWebServer mockWebServer = new MockWebServer();
+
+    private WebTestClient webTestClient;
+
+    @Test
+    public void freshResponse() {
+        String forwardedUrl = getForwardedUrl("/original/fresh");
+        prepareResponse(response -> response
+            .setResponseCode(OK.value())
+            .setHeader(CONTENT_TYPE, TEXT_PLAIN_VALUE)
+            .setHeader(CACHE_CONTROL, "max-age=60")
+            .setBody(BODY_VALUE));
+
+        get(forwardedUrl)
+            .expectStatus().isOk()
+            .expectBody(String.class).isEqualTo(BODY_VALUE);
+        get(forwardedUrl)
+            .expectStatus().isOk()
+            .expectHeader().valueEquals(CONTENT_TYPE, TEXT_PLAIN_VALUE)
+            .expectBody(String.class).isEqualTo(BODY_VALUE);
+
+        assertThat(this.mockWebServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void revalidatedResponse() throws InterruptedException {
+        String forwardedUrl = getForwardedUrl("/original/revalidated");
+        prepareResponse(response -> response
+            .setResponseCode(OK.value())
+            .setHeader(CACHE_CONTROL, "no-cache")
+            .setHeader(ETAG, ETAG_VALUE)
+            .setBody(BODY_VALUE));
+        prepareResponse(response -> response
+            .setResponseCode(NOT_MODIFIED.value())
+            .setHeader(ETAG, ETAG_VALUE));
+
+        get(forwardedUrl)
+            .expectStatus().isOk()
+            .expectBody(String.class).isEqualTo(BODY_VALUE);
+        get(forwardedUrl)
+            .expectStatus().isOk()
+            .expectBody(String.class).isEqualTo(BODY_VALUE);
+
+        assertThat(this.mockWebServer.getRequestCount()).isEqualTo(2);
+        assertThat(this.mockWebServer.takeRequest().getHeader(IF_NONE_MATCH)).isNull();
+        RecordedRequest revalidation = this.mockWebServer.takeRequest();
+        assertThat(revalidation.getHeader(IF_NONE_MATCH)).isEqualTo(ETAG_VALUE);
+    }
+
+    @Test
+    public void conditionalRequest() {
+        String forwardedUrl = getForwardedUrl("/original/conditional");
+        prepareResponse(response -> response
+            .setResponseCode(OK.value())
+            .setHeader(CACHE_CONTROL, "max-age=60")
+            .setHeader(ETAG, ETAG_VALUE)
+            .setBody(BODY_VALUE));
+
+        get(forwardedUrl)
+            .expectStatus().isOk();
+
+        this.webTestClient
+            .get().uri("http://localhost/route-service/conditional")
+            .header(FORWARDED_URL, forwardedUrl)
+            .header(PROXY_METADATA, PROXY_METADATA_VALUE)
+            .header(PROXY_SIGNATURE, PROXY_SIGNATURE_VALUE)
+            .header(FORWARDED_FOR, FORWARDED_FOR_VALUE)
+            .header(IF_NONE_MATCH, ETAG_VALUE)
+            .exchange()
+            .expectStatus().isNotModified();
+
+        assertThat(this.mockWebServer.getRequestCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void uncacheableResponse() {
+        String forwardedUrl = getForwardedUrl("/original/uncacheable");
+        prepareResponse(response -> response
+            .setResponseCode(OK.value())
+            .setHeader(CACHE_CONTROL, "no-store")
+            .setBody(BODY_VALUE));
+        prepareResponse(response -> response
+            .setResponseCode(OK.value())
+            .setHeader(CACHE_CONTROL, "no-store")
+            .setBody(BODY_VALUE));
+
+        get(forwardedUrl)
+            .expectStatus().isOk()
+            .expectBody(String.class).isEqualTo(BODY_VALUE);
+        get(forwardedUrl)
+            .expectStatus().isOk()
+            .expectBody(String.class).isEqualTo(BODY_VALUE);
+
+        assertThat(this.mockWebServer.getRequestCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void unreadBodyReleasesCoalescing() {
+        ResponseCache responseCache = new ResponseCache(new SimpleMeterRegistry(), 1_048_576, 1_048_576, 200);
+        HttpHeaders responseHeaders = new HttpHeaders();
+        responseHeaders.setCacheControl("max-age=60");
+
+        AtomicInteger upstreamRequests = new AtomicInteger();
+        Function<HttpHeaders, Mono<ResponseEntity<Flux<DataBuffer>>>> upstream = headers -> {
+            upstreamRequests.incrementAndGet();
+            return Mono.just(new ResponseEntity<>(Flux.never(), responseHeaders, OK));
+        };
+
+        assertThat(responseCache.exchange(HttpMethod.GET, "http://app.example.com/", new HttpHeaders(), upstream).block()).isNotNull();
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(300));
+
+        long start = System.nanoTime();
+        assertThat(responseCache.exchange(HttpMethod.GET, "http://app.example.com/", new HttpHeaders(), upstream).block(Duration.ofSeconds(5))).isNotNull();
+
+        assertThat(System.nanoTime() - start).isLessThan(TimeUnit.MILLISECONDS.toNanos(200));
+        assertThat(upstreamRequests).hasValue(2);
+    }
+
+    @Autowired
+    void setWebApplicationContext(ApplicationContext applicationContext) {
+        this.webTestClient = WebTestClient.bindToApplicationContext(applicationContext).build();
+    }
+
+    private WebTestClient.ResponseSpec get(String forwardedUrl) {
+        return this.webTestClient
+            .get().uri("http://localhost/route-service/get")
+            .header(FORWARDED_URL, forwardedUrl)
+            .header(PROXY_METADATA, PROXY_METADATA_VALUE)
+            .header(PROXY_SIGNATURE, PROXY_SIGNATURE_VALUE)
+            .header(FORWARDED_FOR, FORWARDED_FOR_VALUE)
+            .exchange();
+    }
+
+    private String getForwardedUrl(String path) {
+        return UriComponentsBuilder.newInstance()
+            .scheme("http")
+            .host(this.mockWebServer.getHostName())
+            .port(this.mockWebServer.getPort())
+            .path(path)
+            .toUriString();
+    }
+
+    private void prepareResponse(Consumer<MockResponse> consumer) {
+        MockResponse response = new MockResponse();
+        consumer.accept(response);
+        this.mockWebServer.enqueue(response);
+    }
+
+}
@@ -0,0 +1,136 @@
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import reactor.core.publisher.Flux;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.http.HttpHeaders.ACCEPT_ENCODING;
+
+public final class ResponseCompressionTest {
+
+    private final DefaultDataBufferFactory dataBufferFactory = new DefaultDataBufferFactory();
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final ResponseCompression responseCompression = new ResponseCompression(this.meterRegistry, true, 16, "text/plain, application/json", 6);
+
+    @Test
+    public void negotiate() {
+        assertThat(ResponseCompression.negotiate(null)).isNull();
+        assertThat(ResponseCompression.negotiate(Collections.singletonList("gzip, deflate, br"))).isEqualTo("gzip");
+        assertThat(ResponseCompression.negotiate(Collections.singletonList("deflate"))).isEqualTo("deflate");
+        assertThat(ResponseCompression.negotiate(Collections.singletonList("gzip;q=0.5, deflate"))).isEqualTo("deflate");
+        assertThat(ResponseCompression.negotiate(Collections.singletonList("gzip;q=0"))).isNull();
+        assertThat(ResponseCompression.negotiate(Collections.singletonList("*"))).isEqualTo("gzip");
+        assertThat(ResponseCompression.negotiate(Collections.singletonList("identity, br"))).isNull();
+    }
+
+    @Test
+    public void gzip() throws IOException {
+        ResponseEntity<Flux<DataBuffer>> response = this.responseCompression.compress(HttpMethod.GET, acceptEncoding("gzip"),
+            response(MediaType.TEXT_PLAIN, "test-body-", "test-body-", "test-body"));
+
+        assertThat(response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING)).isEqualTo("gzip");
+        assertThat(response.getHeaders().getContentLength()).isEqualTo(-1);
+        assertThat(response.getHeaders().getVary()).containsExactly("Accept-Encoding");
+        assertThat(response.getHeaders().getETag()).isEqualTo("W/\"test-etag\"");
+        assertThat(decompress(new GZIPInputStream(new ByteArrayInputStream(body(response))))).isEqualTo("test-body-test-body-test-body");
+
+        assertThat(this.meterRegistry.get("compression.input").counter().count()).isEqualTo(29);
+        assertThat(this.meterRegistry.get("compression.time").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    public void deflate() throws IOException {
+        ResponseEntity<Flux<DataBuffer>> response = this.responseCompression.compress(HttpMethod.GET, acceptEncoding("deflate"),
+            response(MediaType.APPLICATION_JSON_UTF8, "{\"test-key\":\"test-value\"}"));
+
+        assertThat(response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING)).isEqualTo("deflate");
+        assertThat(decompress(new InflaterInputStream(new ByteArrayInputStream(body(response))))).isEqualTo("{\"test-key\":\"test-value\"}");
+    }
+
+    @Test
+    public void notCompressed() {
+        ResponseEntity<Flux<DataBuffer>> notAccepted = response(MediaType.TEXT_PLAIN, "test-body-test-body");
+        assertThat(this.responseCompression.compress(HttpMethod.GET, new HttpHeaders(), notAccepted)).isSameAs(notAccepted);
+
+        ResponseEntity<Flux<DataBuffer>> image = response(MediaType.IMAGE_PNG, "test-body-test-body");
+        assertThat(this.responseCompression.compress(HttpMethod.GET, acceptEncoding("gzip"), image)).isSameAs(image);
+
+        ResponseEntity<Flux<DataBuffer>> small = response(MediaType.TEXT_PLAIN, "test-body");
+        assertThat(this.responseCompression.compress(HttpMethod.GET, acceptEncoding("gzip"), small)).isSameAs(small);
+
+        ResponseEntity<Flux<DataBuffer>> head = response(MediaType.TEXT_PLAIN, "test-body-test-body");
+        assertThat(this.responseCompression.compress(HttpMethod.HEAD, acceptEncoding("gzip"), head)).isSameAs(head);
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.TEXT_PLAIN);
+        headers.set(HttpHeaders.CONTENT_ENCODING, "br");
+        ResponseEntity<Flux<DataBuffer>> encoded = new ResponseEntity<>(Flux.empty(), headers, HttpStatus.OK);
+        assertThat(this.responseCompression.compress(HttpMethod.GET, acceptEncoding("gzip"), encoded)).isSameAs(encoded);
+
+        ResponseEntity<Flux<DataBuffer>> disabled = response(MediaType.TEXT_PLAIN, "test-body-test-body");
+        assertThat(new ResponseCompression(this.meterRegistry, false, 16, "text/plain", 6)
+            .compress(HttpMethod.GET, acceptEncoding("gzip"), disabled)).isSameAs(disabled);
+    }
+
+    private HttpHeaders acceptEncoding(String value) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(ACCEPT_ENCODING, value);
+        return headers;
+    }
+
+    private ResponseEntity<Flux<DataBuffer>> response(MediaType contentType, String... chunks) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(contentType);
+        headers.setContentLength(Arrays.stream(chunks).mapToInt(String::length).sum());
+        headers.setETag("\"test-etag\"");
+
+        return new ResponseEntity<>(Flux.fromArray(chunks)
+            .map(chunk -> this.dataBufferFactory.wrap(chunk.getBytes(StandardCharsets.UTF_8))), headers, HttpStatus.OK);
+    }
+
+    private byte[] body(ResponseEntity<Flux<DataBuffer>> response) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.getBody()
+            .doOnNext(buffer -> {
+                byte[] bytes = new byte[buffer.readableByteCount()];
+                buffer.read(bytes);
+                out.write(bytes, 0, bytes.length);
+                DataBufferUtils.release(buffer);
+            })
+            .blockLast();
+        return out.toByteArray();
+    }
+
+    private String decompress(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int length;
+        while ((length = in.read(buffer)) > 0) {
+            out.write(buffer, 0, length);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+}
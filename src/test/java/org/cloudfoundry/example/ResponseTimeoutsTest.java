@@ -0,0 +1,36 @@
+package org.cloudfoundry.example;
+
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public final class ResponseTimeoutsTest {
+
+    @Test
+    public void routeTimeouts() {
+        ResponseTimeouts responseTimeouts = new ResponseTimeouts(5_000, "slow.example.com=30000, fast.example.com:8080=500 none.example.com=0");
+
+        assertThat(responseTimeouts.get("app.example.com")).isEqualTo(Duration.ofSeconds(5));
+        assertThat(responseTimeouts.get("Slow.Example.com")).isEqualTo(Duration.ofSeconds(30));
+        assertThat(responseTimeouts.get("fast.example.com:8080")).isEqualTo(Duration.ofMillis(500));
+        assertThat(responseTimeouts.get("fast.example.com")).isEqualTo(Duration.ofSeconds(5));
+        assertThat(responseTimeouts.get("none.example.com")).isNull();
+    }
+
+    @Test
+    public void noDefault() {
+        assertThat(new ResponseTimeouts(0, "").get("app.example.com")).isNull();
+    }
+
+    @Test
+    public void invalid() {
+        assertThatThrownBy(() -> new ResponseTimeouts(0, "app.example.com"))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new ResponseTimeouts(0, "app.example.com=soon"))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+}
@@ -0,0 +1,94 @@
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class SignatureVerifierTest {
+
+    private static final String FORWARDED_URL = "https://app.example.com/path?query=value";
+
+    private static final String SECRET = "test-secret";
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final SignatureVerifier signatureVerifier = new SignatureVerifier(this.meterRegistry, SECRET, 60_000, 100);
+
+    @Test
+    public void disabled() {
+        SignatureVerifier signatureVerifier = new SignatureVerifier(this.meterRegistry, "", 60_000, 100);
+
+        assertThat(signatureVerifier.isEnabled()).isFalse();
+        assertThat(signatureVerifier.verify("test-signature", "test-metadata", FORWARDED_URL)).isTrue();
+    }
+
+    @Test
+    public void valid() throws Exception {
+        long now = System.currentTimeMillis();
+        String[] signature = sign(SECRET, FORWARDED_URL, now);
+
+        assertThat(this.signatureVerifier.isEnabled()).isTrue();
+        assertThat(this.signatureVerifier.verify(signature[0], signature[1], FORWARDED_URL, now + 1_000)).isTrue();
+        assertThat(this.signatureVerifier.verify(signature[0], signature[1], FORWARDED_URL, now + 2_000)).isTrue();
+
+        assertThat(this.meterRegistry.get("signature.verifications").tag("result", "verified").counter().count()).isEqualTo(1);
+        assertThat(this.meterRegistry.get("signature.verifications").tag("result", "hit").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    public void wrongUrl() throws Exception {
+        long now = System.currentTimeMillis();
+        String[] signature = sign(SECRET, FORWARDED_URL, now);
+
+        assertThat(this.signatureVerifier.verify(signature[0], signature[1], "https://other.example.com/", now)).isFalse();
+    }
+
+    @Test
+    public void expired() throws Exception {
+        long now = System.currentTimeMillis();
+        String[] signature = sign(SECRET, FORWARDED_URL, now - 120_000);
+
+        assertThat(this.signatureVerifier.verify(signature[0], signature[1], FORWARDED_URL, now)).isFalse();
+    }
+
+    @Test
+    public void wrongSecret() throws Exception {
+        long now = System.currentTimeMillis();
+        String[] signature = sign("other-secret", FORWARDED_URL, now);
+
+        assertThat(this.signatureVerifier.verify(signature[0], signature[1], FORWARDED_URL, now)).isFalse();
+        assertThat(this.signatureVerifier.verify("not-base64!", signature[1], FORWARDED_URL, now)).isFalse();
+        assertThat(this.meterRegistry.get("signature.verifications").tag("result", "rejected").counter().count()).isEqualTo(2);
+    }
+
+    private static String[] sign(String secret, String forwardedUrl, long requestedTime) throws Exception {
+        byte[] nonce = new byte[12];
+        nonce[0] = (byte) requestedTime;
+
+        String plaintext = String.format("{\"requested_time\":\"%s\",\"forwarded_url\":\"%s\"}",
+            OffsetDateTime.ofInstant(Instant.ofEpochMilli(requestedTime), ZoneOffset.ofHours(2)), forwardedUrl);
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(SignatureVerifier.deriveKey(secret), "AES"), new GCMParameterSpec(128, nonce));
+        byte[] ciphertext = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
+
+        String metadata = String.format("{\"nonce\":\"%s\"}", Base64.getEncoder().encodeToString(nonce));
+
+        return new String[]{
+            Base64.getUrlEncoder().encodeToString(ciphertext),
+            Base64.getUrlEncoder().encodeToString(metadata.getBytes(StandardCharsets.UTF_8))
+        };
+    }
+
+}
@@ -0,0 +1,172 @@
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.NettyDataBuffer;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import reactor.core.Disposable;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public final class SingleFlightTest {
+
+    private final NettyDataBufferFactory dataBufferFactory = new NettyDataBufferFactory(new UnpooledByteBufAllocator(false));
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final SingleFlight singleFlight = new SingleFlight(this.meterRegistry, "app.example.com", "Accept, Authorization", 100);
+
+    private final AtomicInteger upstreamRequests = new AtomicInteger();
+
+    private final MonoProcessor<ResponseEntity<Flux<DataBuffer>>> upstreamResponse = MonoProcessor.create();
+
+    private final Supplier<Mono<ResponseEntity<Flux<DataBuffer>>>> upstream = () -> {
+        this.upstreamRequests.incrementAndGet();
+        return this.upstreamResponse;
+    };
+
+    @Test
+    public void isCoalescing() {
+        HttpHeaders withBody = new HttpHeaders();
+        withBody.setContentLength(10);
+
+        assertThat(this.singleFlight.isCoalescing(HttpMethod.GET, "APP.example.com", new HttpHeaders())).isTrue();
+        assertThat(this.singleFlight.isCoalescing(HttpMethod.HEAD, "app.example.com", new HttpHeaders())).isTrue();
+        assertThat(this.singleFlight.isCoalescing(HttpMethod.POST, "app.example.com", new HttpHeaders())).isFalse();
+        assertThat(this.singleFlight.isCoalescing(HttpMethod.GET, "other.example.com", new HttpHeaders())).isFalse();
+        assertThat(this.singleFlight.isCoalescing(HttpMethod.GET, "app.example.com", withBody)).isFalse();
+        assertThat(new SingleFlight(this.meterRegistry, "", "", 100).isCoalescing(HttpMethod.GET, "app.example.com", new HttpHeaders())).isFalse();
+        assertThat(new SingleFlight(this.meterRegistry, "*", "", 100).isCoalescing(HttpMethod.GET, "other.example.com", new HttpHeaders())).isTrue();
+    }
+
+    @Test
+    public void coalesce() {
+        MonoProcessor<String> first = body(this.singleFlight.exchange(HttpMethod.GET, "http://app.example.com/", new HttpHeaders(), this.upstream));
+        MonoProcessor<String> second = body(this.singleFlight.exchange(HttpMethod.GET, "http://app.example.com/", new HttpHeaders(), this.upstream));
+
+        List<NettyDataBuffer> sent = new ArrayList<>();
+        this.upstreamResponse.onNext(new ResponseEntity<>(Flux.just("test-", "body").map(this::buffer).doOnNext(sent::add), HttpStatus.OK));
+
+        assertThat(first.block()).isEqualTo("test-body");
+        assertThat(second.block()).isEqualTo("test-body");
+        assertThat(this.upstreamRequests).hasValue(1);
+        assertThat(sent).hasSize(2).allMatch(buffer -> buffer.getNativeBuffer().refCnt() == 0);
+        assertThat(requests("leader")).isEqualTo(1);
+        assertThat(requests("coalesced")).isEqualTo(1);
+    }
+
+    @Test
+    public void differentKeys() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.AUTHORIZATION, "Basic dGVzdDp0ZXN0");
+
+        this.singleFlight.exchange(HttpMethod.GET, "http://app.example.com/", new HttpHeaders(), this.upstream).subscribe();
+        this.singleFlight.exchange(HttpMethod.GET, "http://app.example.com/", headers, this.upstream).subscribe();
+        this.singleFlight.exchange(HttpMethod.HEAD, "http://app.example.com/", new HttpHeaders(), this.upstream).subscribe();
+        this.singleFlight.exchange(HttpMethod.GET, "http://app.example.com/other", new HttpHeaders(), this.upstream).subscribe();
+
+        assertThat(this.upstreamRequests).hasValue(4);
+    }
+
+    @Test
+    public void closedAfterResponse() {
+        body(this.singleFlight.exchange(HttpMethod.GET, "http://app.example.com/", new HttpHeaders(), this.upstream));
+        this.upstreamResponse.onNext(new ResponseEntity<>(Flux.just(buffer("test-body")), HttpStatus.OK));
+
+        body(this.singleFlight.exchange(HttpMethod.GET, "http://app.example.com/", new HttpHeaders(), this.upstream));
+
+        assertThat(this.upstreamRequests).hasValue(2);
+    }
+
+    @Test
+    public void abandoned() {
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Supplier<Mono<ResponseEntity<Flux<DataBuffer>>>> upstream = () -> this.upstreamResponse.doOnCancel(() -> cancelled.set(true));
+
+        Disposable first = this.singleFlight.exchange(HttpMethod.GET, "http://app.example.com/", new HttpHeaders(), upstream).subscribe();
+        Disposable second = this.singleFlight.exchange(HttpMethod.GET, "http://app.example.com/", new HttpHeaders(), upstream).subscribe();
+
+        first.dispose();
+        assertThat(cancelled).isFalse();
+
+        second.dispose();
+        assertThat(cancelled).isTrue();
+    }
+
+    @Test
+    public void abandonedBody() {
+        this.singleFlight.exchange(HttpMethod.GET, "http://app.example.com/", new HttpHeaders(), this.upstream)
+            .subscribe(new BaseSubscriber<ResponseEntity<Flux<DataBuffer>>>() {
+
+                @Override
+                protected void hookOnNext(ResponseEntity<Flux<DataBuffer>> value) {
+                    cancel();
+                }
+
+            });
+        MonoProcessor<String> second = body(this.singleFlight.exchange(HttpMethod.GET, "http://app.example.com/", new HttpHeaders(), this.upstream));
+
+        List<NettyDataBuffer> sent = new ArrayList<>();
+        this.upstreamResponse.onNext(new ResponseEntity<>(Flux.just(buffer("test-body")).doOnNext(sent::add), HttpStatus.OK));
+
+        assertThat(second.block()).isEqualTo("test-body");
+        assertThat(sent).hasSize(1).allMatch(buffer -> buffer.getNativeBuffer().refCnt() == 0);
+    }
+
+    @Test
+    public void unsubscribedBody() {
+        AtomicBoolean received = new AtomicBoolean();
+        this.singleFlight.exchange(HttpMethod.GET, "http://app.example.com/", new HttpHeaders(), this.upstream)
+            .subscribe(response -> received.set(true));
+        MonoProcessor<String> second = body(this.singleFlight.exchange(HttpMethod.GET, "http://app.example.com/", new HttpHeaders(), this.upstream));
+
+        List<NettyDataBuffer> sent = new ArrayList<>();
+        this.upstreamResponse.onNext(new ResponseEntity<>(Flux.just(buffer("test-body")).doOnNext(sent::add), HttpStatus.OK));
+
+        assertThat(received).isTrue();
+        assertThat(second.block(Duration.ofSeconds(5))).isEqualTo("test-body");
+        assertThat(sent).hasSize(1).allMatch(buffer -> buffer.getNativeBuffer().refCnt() == 0);
+    }
+
+    private MonoProcessor<String> body(Mono<ResponseEntity<Flux<DataBuffer>>> response) {
+        return response
+            .flatMapMany(ResponseEntity::getBody)
+            .map(buffer -> {
+                String value = StandardCharsets.UTF_8.decode(buffer.asByteBuffer()).toString();
+                DataBufferUtils.release(buffer);
+                return value;
+            })
+            .collect(StringBuilder::new, StringBuilder::append)
+            .map(StringBuilder::toString)
+            .toProcessor();
+    }
+
+    private NettyDataBuffer buffer(String value) {
+        return this.dataBufferFactory.wrap(this.dataBufferFactory.getByteBufAllocator().buffer().writeBytes(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private double requests(String result) {
+        return this.meterRegistry.get("single.flight.requests").tag("result", result).counter().count();
+    }
+
+}
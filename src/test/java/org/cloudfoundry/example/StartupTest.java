@@ -0,0 +1,82 @@
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.cloudfoundry.example.Controller.FORWARDED_FOR;
+import static org.cloudfoundry.example.Controller.FORWARDED_URL;
+import static org.cloudfoundry.example.Controller.PROXY_METADATA;
+import static org.cloudfoundry.example.Controller.PROXY_SIGNATURE;
+
+public final class StartupTest {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    @Rule
+    public final MockWebServer mockWebServer = new MockWebServer();
+
+    @Test
+    public void fastStart() {
+        this.mockWebServer.enqueue(new MockResponse().setBody("test-body"));
+
+        long start = System.nanoTime();
+        try (ConfigurableApplicationContext application = new SpringApplicationBuilder(RouteServiceApplication.class)
+            .profiles("fast-start")
+            .properties("server.port=0", "VALID_IPS=5.5.5.5", "WARMUP_REQUESTS=200")
+            .run()) {
+
+            long started = System.nanoTime() - start;
+            String port = application.getEnvironment().getProperty("local.server.port");
+            WebClient webClient = WebClient.create("http://127.0.0.1:" + port);
+
+            long ready = -1;
+            while (ready < 0 && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(60)) {
+                HttpStatus status = webClient.get().uri("/actuator/health")
+                    .exchange()
+                    .flatMap(response -> response.bodyToMono(String.class).then(Mono.just(response.statusCode())))
+                    .block(Duration.ofSeconds(10));
+
+                if (status == HttpStatus.OK) {
+                    ready = System.nanoTime() - start;
+                } else {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                }
+            }
+
+            String body = webClient.get().uri("/")
+                .header(FORWARDED_URL, this.mockWebServer.url("/original").toString())
+                .header(FORWARDED_FOR, "5.5.5.5")
+                .header(PROXY_METADATA, "test-proxy-metadata")
+                .header(PROXY_SIGNATURE, "test-proxy-signature")
+                .retrieve()
+                .bodyToMono(String.class)
+                .block(Duration.ofSeconds(10));
+            long firstRequest = System.nanoTime() - start;
+
+            assertThat(ready).isPositive();
+            assertThat(body).isEqualTo("test-body");
+            assertThat(application.getBean(MeterRegistry.class).get("application.ready.time").timeGauge().value(TimeUnit.MILLISECONDS)).isPositive();
+            assertThat(application.getBean(MeterRegistry.class).find("proxy.requests").tag("host", "127.0.0.1:" + port).timer()).isNull();
+            assertThat(application.getBean(Warmup.class).health().getDetails()).containsEntry("failures", 0L);
+
+            this.logger.info("Started in {} ms, ready in {} ms, first request completed in {} ms",
+                TimeUnit.NANOSECONDS.toMillis(started), TimeUnit.NANOSECONDS.toMillis(ready), TimeUnit.NANOSECONDS.toMillis(firstRequest));
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+package org.cloudfoundry.example;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public final class UpstreamRetriesTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private final UpstreamRetries upstreamRetries = new UpstreamRetries(this.meterRegistry, 2, 1, 2, "hedged.example.com", 0.95, 0, 0.1, 10);
+
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    private final ClientResponse response = ClientResponse.create(HttpStatus.OK).build();
+
+    @Test
+    public void isRepeatable() {
+        HttpHeaders withBody = new HttpHeaders();
+        withBody.setContentLength(10);
+
+        assertThat(this.upstreamRetries.isRepeatable(HttpMethod.GET, new HttpHeaders())).isTrue();
+        assertThat(this.upstreamRetries.isRepeatable(HttpMethod.DELETE, new HttpHeaders())).isTrue();
+        assertThat(this.upstreamRetries.isRepeatable(HttpMethod.POST, new HttpHeaders())).isFalse();
+        assertThat(this.upstreamRetries.isRepeatable(HttpMethod.PUT, withBody)).isFalse();
+        assertThat(new UpstreamRetries(this.meterRegistry, 0, 1, 2, "", 0.95, 0, 0.1, 10).isRepeatable(HttpMethod.GET, new HttpHeaders())).isFalse();
+    }
+
+    @Test
+    public void retry() {
+        ClientResponse response = this.upstreamRetries.exchange("app.example.com", true, () -> this.attempts.incrementAndGet() < 3 ?
+            Mono.error(new ConnectException("test-refused")) : Mono.just(this.response)).block();
+
+        assertThat(response).isSameAs(this.response);
+        assertThat(this.attempts).hasValue(3);
+        assertThat(retries("retry", "sent")).isEqualTo(2);
+    }
+
+    @Test
+    public void retryExhausted() {
+        assertThatThrownBy(() -> this.upstreamRetries.exchange("app.example.com", true, () -> {
+            this.attempts.incrementAndGet();
+            return Mono.error(new IOException("Connection reset by peer"));
+        }).block()).hasMessageContaining("Connection reset by peer");
+
+        assertThat(this.attempts).hasValue(3);
+    }
+
+    @Test
+    public void noRetry() {
+        assertThatThrownBy(() -> this.upstreamRetries.exchange("app.example.com", true, () -> {
+            this.attempts.incrementAndGet();
+            return Mono.error(new IllegalStateException("test-error"));
+        }).block()).isInstanceOf(IllegalStateException.class);
+        assertThat(this.attempts).hasValue(1);
+
+        assertThatThrownBy(() -> this.upstreamRetries.exchange("app.example.com", false, () -> {
+            this.attempts.incrementAndGet();
+            return Mono.error(new ConnectException("test-refused"));
+        }).block()).hasCauseInstanceOf(ConnectException.class);
+        assertThat(this.attempts).hasValue(2);
+    }
+
+    @Test
+    public void budget() {
+        UpstreamRetries upstreamRetries = new UpstreamRetries(this.meterRegistry, 2, 1, 2, "", 0.95, 0, 0, 0);
+
+        assertThatThrownBy(() -> upstreamRetries.exchange("app.example.com", true, () -> {
+            this.attempts.incrementAndGet();
+            return Mono.error(new ConnectException("test-refused"));
+        }).block()).hasCauseInstanceOf(ConnectException.class);
+
+        assertThat(this.attempts).hasValue(1);
+        assertThat(retries("retry", "budget_exhausted")).isEqualTo(1);
+    }
+
+    @Test
+    public void budgetPool() {
+        UpstreamRetries.Budget budget = new UpstreamRetries.Budget(0.5, 0);
+
+        budget.deposit();
+        assertThat(budget.withdraw(0)).isFalse();
+        budget.deposit();
+        assertThat(budget.withdraw(0)).isTrue();
+        assertThat(budget.withdraw(0)).isFalse();
+    }
+
+    @Test
+    public void budgetReserve() {
+        UpstreamRetries.Budget budget = new UpstreamRetries.Budget(0, 2);
+
+        assertThat(budget.withdraw(0)).isTrue();
+        assertThat(budget.withdraw(0)).isTrue();
+        assertThat(budget.withdraw(0)).isFalse();
+        assertThat(budget.withdraw(TimeUnit.MILLISECONDS.toNanos(500))).isTrue();
+    }
+
+    @Test
+    public void backoff() {
+        for (int retry = 1; retry < 5; retry++) {
+            assertThat(this.upstreamRetries.getBackoff(retry)).isBetween(0L, TimeUnit.MILLISECONDS.toNanos(2));
+        }
+    }
+
+    @Test
+    public void hedgeDelay() {
+        assertThat(this.upstreamRetries.getHedgeDelay("hedged.example.com")).isEqualTo(-1);
+
+        for (int i = 0; i < 1000; i++) {
+            this.upstreamRetries.recordLatency("hedged.example.com", TimeUnit.MILLISECONDS.toNanos(i % 100 + 1));
+        }
+
+        assertThat(this.upstreamRetries.getHedgeDelay("hedged.example.com"))
+            .isBetween(TimeUnit.MILLISECONDS.toNanos(80), TimeUnit.MILLISECONDS.toNanos(110));
+    }
+
+    @Test
+    public void hedge() {
+        for (int i = 0; i < 20; i++) {
+            this.upstreamRetries.recordLatency("hedged.example.com", TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        AtomicBoolean cancelled = new AtomicBoolean();
+        ClientResponse response = this.upstreamRetries.exchange("hedged.example.com", true, () -> this.attempts.incrementAndGet() == 1 ?
+            Mono.<ClientResponse>never().doOnCancel(() -> cancelled.set(true)) : Mono.just(this.response)).block(Duration.ofSeconds(5));
+
+        assertThat(response).isSameAs(this.response);
+        assertThat(this.attempts).hasValue(2);
+        assertThat(cancelled).isTrue();
+        assertThat(retries("hedge", "sent")).isEqualTo(1);
+        assertThat(this.meterRegistry.get("upstream.hedge.wins").counter().count()).isEqualTo(1);
+    }
+
+    @Test
+    public void notHedged() {
+        for (int i = 0; i < 20; i++) {
+            this.upstreamRetries.recordLatency("app.example.com", TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        ClientResponse response = this.upstreamRetries.exchange("app.example.com", true, () -> {
+            this.attempts.incrementAndGet();
+            return Mono.delay(Duration.ofMillis(50)).then(Mono.just(this.response));
+        }).block(Duration.ofSeconds(5));
+
+        assertThat(response).isSameAs(this.response);
+        assertThat(this.attempts).hasValue(1);
+    }
+
+    private double retries(String type, String result) {
+        return this.meterRegistry.get("upstream.retries").tag("type", type).tag("result", result).counter().count();
+    }
+
+}